@@ -1,21 +1,61 @@
 package com.hmdp.config;
 
 import org.redisson.Redisson;
+import cn.hutool.core.util.StrUtil;
 import org.redisson.api.RedissonClient;
+import org.redisson.config.ClusterServersConfig;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 public class RedisConfig {
     @Bean
-    public RedissonClient redissonClient() {
+    public RedissonClient redissonClient(RedisProperties redisProperties) {
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://127.0.0.1:6379");
+        // 与spring.redis使用相同的节点，配置了集群节点时使用集群模式
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty()) {
+            ClusterServersConfig clusterConfig = config.useClusterServers();
+            cluster.getNodes().forEach(node -> clusterConfig.addNodeAddress("redis://" + node));
+            clusterConfig.setPassword(StrUtil.emptyToNull(redisProperties.getPassword()));
+        } else {
+            config.useSingleServer()
+                    .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                    .setPassword(StrUtil.emptyToNull(redisProperties.getPassword()));
+        }
 
         return Redisson.create(config);
     }
 
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory,
+            @Value("${hmdp.pubsub.threads:4}") int threads,
+            @Value("${hmdp.pubsub.queue-capacity:10000}") int queueCapacity) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 默认的SimpleAsyncTaskExecutor每条消息创建一个线程，消息突增时线程数不受控制。
+        // 改用有界线程池，积压超过上限时丢弃最早的消息，各订阅方都有过期时间或定期同步兜底
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("redis-listener-");
+        executor.setDaemon(true);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardOldestPolicy());
+        executor.initialize();
+        container.setTaskExecutor(executor);
+        return container;
+    }
+
 //    @Bean
 //    public RedissonClient redissonClient2(){
 //        Config config = new Config();
@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -26,6 +27,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 根据id查询商铺信息
      *
@@ -100,4 +104,14 @@ public class ShopController {
         // 返回数据
         return Result.ok(page.getRecords());
     }
+
+    /**
+     * 查询缓存各级的命中情况
+     *
+     * @return 本地缓存和redis的命中数、命中率
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
 }
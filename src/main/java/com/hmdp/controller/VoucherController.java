@@ -2,6 +2,7 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillLimitDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
@@ -45,6 +46,18 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 修改秒杀券的限流配置，各节点几秒内生效
+     * @param voucherId 优惠券id
+     * @param limit 限流配置，为空的字段使用默认值
+     * @return 无
+     */
+    @PostMapping("seckill/limit/{id}")
+    public Result updateSeckillLimit(@PathVariable("id") Long voucherId, @RequestBody SeckillLimitDTO limit) {
+        voucherService.updateSeckillLimit(voucherId, limit);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
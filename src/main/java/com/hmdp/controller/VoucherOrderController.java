@@ -3,13 +3,20 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderLagMonitor;
+import com.hmdp.utils.OrderStreamMaintainer;
 
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.Map;
 
 /**
  * <p>
@@ -26,8 +33,45 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService iVoucherOrderService;
 
+    @Resource
+    private OrderLagMonitor orderLagMonitor;
+
+    @Resource
+    private OrderStreamMaintainer orderStreamMaintainer;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return iVoucherOrderService.seckillVoucher(voucherId);
     }
+
+    @GetMapping("status/{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId, @RequestParam("voucherId") Long voucherId) {
+        return iVoucherOrderService.queryOrderStatus(voucherId, orderId);
+    }
+
+    @GetMapping(value = "events/{id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeEvents(@PathVariable("id") Long voucherId) {
+        return iVoucherOrderService.subscribeEvents(voucherId);
+    }
+
+    @PostMapping("queue/{id}")
+    public Result joinQueue(@PathVariable("id") Long voucherId) {
+        return iVoucherOrderService.joinQueue(voucherId);
+    }
+
+    @GetMapping("queue/{id}")
+    public Result queryQueue(@PathVariable("id") Long voucherId) {
+        return iVoucherOrderService.queryQueue(voucherId);
+    }
+
+    /**
+     * 查询订单消息队列的积压和宕机消费者的恢复情况
+     */
+    @GetMapping("stream/stats")
+    public Result queryStreamStats() {
+        Map<String, Object> stats = orderLagMonitor.stats();
+        stats.put("reclaimedTotal", orderStreamMaintainer.getReclaimedTotal());
+        stats.put("lastRecoveryMillis", orderStreamMaintainer.getLastRecoveryMillis());
+        return Result.ok(stats);
+    }
 }
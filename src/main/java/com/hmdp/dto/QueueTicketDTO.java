@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class QueueTicketDTO {
+    // 是否已放行，放行后才能下单
+    private Boolean admitted;
+    // 前面还有多少人，已放行时为0，未排队时为-1
+    private Long position;
+}
@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillLimitDTO {
+    // 每个节点每张优惠券每秒允许的请求数
+    private Double voucherQps;
+    // 每个用户每张优惠券每秒允许的请求数
+    private Double userQps;
+    // 整个集群每张优惠券每秒允许的请求数，0表示不启用
+    private Double globalQps;
+}
@@ -0,0 +1,12 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillStockDTO {
+    private Long voucherId;
+    // 数据库中的剩余库存
+    private Integer stock;
+    // 数据库中未取消的订单数
+    private Long orders;
+}
@@ -1,7 +1,12 @@
 package com.hmdp.mapper;
 
+import com.hmdp.dto.SeckillStockDTO;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +18,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 查询voucher_id大于游标、且结束时间晚于endAfter的秒杀券库存和订单数，库存和订单数在同一条语句中读取
+     */
+    List<SeckillStockDTO> queryStockAfter(@Param("cursor") Long cursor,
+                                          @Param("endAfter") LocalDateTime endAfter,
+                                          @Param("limit") int limit);
 }
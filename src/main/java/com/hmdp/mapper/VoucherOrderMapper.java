@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单，违反订单主键或未取消订单的(user_id, voucher_id)唯一索引的行会被忽略
+     *
+     * @return 实际插入的订单数
+     */
+    int insertIgnoreBatch(@Param("list") List<VoucherOrder> voucherOrders);
 }
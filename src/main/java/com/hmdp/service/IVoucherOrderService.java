@@ -6,9 +6,11 @@ import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.utils.RedisIdWork;
 import com.hmdp.utils.UserHolder;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * <p>
@@ -22,5 +24,22 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    Result queryOrderStatus(Long voucherId, Long orderId);
+
+    SseEmitter subscribeEvents(Long voucherId);
+
+    Result joinQueue(Long voucherId);
+
+    Result queryQueue(Long voucherId);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消未支付的订单并归还数据库库存
+     *
+     * @return 订单已被支付或取消时返回false
+     */
+    boolean cancelUnpaidOrder(VoucherOrder voucherOrder);
 }
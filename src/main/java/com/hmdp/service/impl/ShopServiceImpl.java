@@ -2,18 +2,17 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.lang.TypeReference;
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterGuard;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
@@ -23,13 +22,11 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.beans.Transient;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -52,6 +49,35 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    // 预计的商铺数量，决定布隆过滤器的大小
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+
+    // 布隆过滤器的误判率
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double bloomFpp;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        // 查询商铺缓存前先判断id是否存在，防止不存在的id穿透到redis和数据库
+        bloomFilterGuard.register(CACHE_SHOP_KEY, "shop", bloomExpectedInsertions, bloomFpp, baseMapper::queryIdsAfter);
+    }
+
+    /**
+     * 新增商铺，写入数据库后把id加入布隆过滤器
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        if (saved) {
+            bloomFilterGuard.add(CACHE_SHOP_KEY, shop.getId());
+        }
+        return saved;
+    }
+
     @Override
     public Result queryById(Long id) {
         // 缓存穿透
@@ -73,118 +99,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
+    /**
+     * 逻辑过期解决缓存击穿，需要提前调用 saveShop2Redis 预热
+     */
     public Shop queryWithLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2.判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            // 3.不存在，直接返回
-            return null;
-        }
-
-        // 4.命中，需要先将Json反序列化成对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = (Shop) redisData.getData();
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1未过期，直接返回店铺信息
-            return shop;
-        }
-
-        // 6.已过期，需要缓存重建
-        // 6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-
-        // 6.2 判断是否获取锁成功
-        if (isLock) {
-            // 6.3成功，开启独立线程
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unLock(lockKey);
-                }
-
-            });
-        }
-
-
-        // 4.不存在，根据id查询数据库
-
-
-        // 6.存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        // 返回
-        return shop;
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
 
+    /**
+     * 互斥锁解决缓存击穿，并发的重建请求由CacheClient在本节点内合并，没抢到锁时等待重建完成的通知
+     */
     public Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2.判断是否存在,isNotBlank的三种情况1.null  2.""  3."\t\n"
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        // 判断是否命中空值
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 实现缓存重建
-        // 4.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-
-            // 4.2判断是否获取成功
-            if (!isLock) {
-                // 4.3 失败，则休眠重试
-                Thread.sleep(200);
-                return queryWithMutex(id);
-            }
-
-            // 4.4 成功，根据id查询数据库
-            shop = getById(id);
-
-            // 5.不存在
-            if (shop == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
-            }
-
-
-            // 6.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7.释放互斥锁
-            unLock(lockKey);
-        }
-
-
-        // 返回
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     public void saveShop2Redis(Long id, Long expireSecond) throws InterruptedException {
@@ -193,57 +119,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 1.查询店铺数据
         Shop shop = getById(id);
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSecond));
-
-        // 3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2.封装逻辑过期时间并写入redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSecond, TimeUnit.SECONDS);
     }
 
     public Shop queryWithPassThrough(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2.判断是否存在,isNotBlank的三种情况1.null  2.""  3."\t\n"
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        // 判断是否命中空值
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 4.不存在，根据id查询数据库
-        Shop shop = getById(id);
-
-        // 5.不存在
-        if (shop == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
-            return null;
-        }
-
-
-        // 6.存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        // 返回
-        return shop;
-    }
-
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     @Override
@@ -256,8 +137,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1.更新数据库
         updateById(shop);
 
-        // 2.删除缓存
-        stringRedisTemplate.delete("cache:shop:1");
+        // 2.删除缓存，并通知各节点清除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
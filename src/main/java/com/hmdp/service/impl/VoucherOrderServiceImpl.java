@@ -1,37 +1,57 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.QueueTicketDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderLagMonitor;
+import com.hmdp.utils.OrderTimeoutCanceller;
 import com.hmdp.utils.RedisIdWork;
+import com.hmdp.utils.SeckillEventPusher;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.StockLeaseManager;
 import com.hmdp.utils.UserHolder;
-import io.lettuce.core.RedisConnectionException;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -55,7 +75,77 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
+    @Resource
+    private SeckillEventPusher seckillEventPusher;
+
+    @Resource
+    private OrderTimeoutCanceller orderTimeoutCanceller;
+
+    @Resource
+    private StockLeaseManager stockLeaseManager;
+
+    @Resource
+    private OrderLagMonitor orderLagMonitor;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    // 消费者组名称
+    @Value("${hmdp.seckill.consumer.group:g1}")
+    private String groupName;
+
+    // 每个节点的消费者数量
+    @Value("${hmdp.seckill.consumer.threads:4}")
+    private int consumerThreads;
+
+    // 消费者名称前缀，为空时使用 pid-hostname，保证不同节点的消费者名称不冲突
+    @Value("${hmdp.seckill.consumer.name-prefix:}")
+    private String consumerNamePrefix;
+
+    // 每次XREADGROUP读取的最大订单数，为1时逐条处理
+    @Value("${hmdp.seckill.consumer.batch-size:50}")
+    private int batchSize;
+
+    // 攒批的最长等待时间(毫秒)
+    @Value("${hmdp.seckill.consumer.batch-max-wait:50}")
+    private long batchMaxWait;
+
+    // 单条消息的最大投递次数，超过后转入死信队列
+    @Value("${hmdp.seckill.consumer.max-attempts:5}")
+    private long maxAttempts;
+
+    // 重试的初始退避时间(毫秒)，每次失败翻倍
+    @Value("${hmdp.seckill.consumer.retry-backoff:200}")
+    private long retryBackoff;
+
+    // 重试的最大退避时间(毫秒)
+    @Value("${hmdp.seckill.consumer.retry-backoff-max:30000}")
+    private long retryBackoffMax;
+
+    // 定期检查pending-list的间隔(毫秒)
+    @Value("${hmdp.seckill.consumer.pending-check-interval:5000}")
+    private long pendingCheckInterval;
+
+    // 集群布局下轮询各分片stream都没有消息时的等待时间(毫秒)
+    @Value("${hmdp.seckill.consumer.poll-interval:100}")
+    private long pollInterval;
+
+    // 消费者刷新stream列表的间隔(毫秒)，集群布局下新优惠券的stream在此时间内开始消费
+    private static final long STREAMS_REFRESH_INTERVAL = 1000;
+
+    // 秒杀脚本返回值对应的提示：1.库存不足 2.重复下单 3.未开始 4.已结束
+    private static final String[] SECKILL_FAIL_MESSAGES = {null, "库存不足", "不能重复下单", "秒杀尚未开始!", "秒杀已经结束!"};
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
@@ -65,269 +155,589 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    /*
-
-    // 阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
 
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+    }
 
-    //当此类一初始化就执行此任务
+    private static final DefaultRedisScript<Long> STOCK_BORROW_SCRIPT;
 
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    static {
+        STOCK_BORROW_SCRIPT = new DefaultRedisScript<>();
+        STOCK_BORROW_SCRIPT.setLocation(new ClassPathResource("stock_borrow.lua"));
+        STOCK_BORROW_SCRIPT.setResultType(Long.class);
     }
 
-    private class VoucherOrderHandler implements Runnable {
+    // 优惠券的库存分片数缓存，秒杀开始后分片数不会再变化
+    private final TimedCache<Long, Integer> stockShardsCache = CacheUtil.newTimedCache(TimeUnit.MINUTES.toMillis(1));
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2.创建订单
-                    handleVoucherOrder(voucherOrder);
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                }
+    // 消费者线程池
+    private ExecutorService seckillOrderExecutor;
 
-            }
+    // 消费者运行标记，关闭应用时置为false
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        // 1.确保消费者组存在
+        List<String> streams = seckillKeys.orderStreamKeys();
+        streams.forEach(this::createGroupIfAbsent);
+        // 2.按配置启动多个消费者，每个消费者使用唯一的名称
+        String nodeName = StrUtil.blankToDefault(consumerNamePrefix,
+                ManagementFactory.getRuntimeMXBean().getName().replace('@', '-'));
+        // 3.默认布局下每个消费者只读一个分区，每个分区至少一个消费者；集群布局下每个消费者轮询全部分片stream
+        int consumers = seckillKeys.isCluster() ? consumerThreads : Math.max(consumerThreads, streams.size());
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers,
+                ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+        for (int i = 0; i < consumers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(nodeName + "-c" + i, i));
         }
+        log.info("启动{}个秒杀订单消费者, 节点: {}, stream数: {}", consumers, nodeName, streams.size());
     }
- private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取对象
-        Long userId = voucherOrder.getUserId();
-
-        // 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
 
-        // 获取锁
-        boolean isLock = lock.tryLock();
-
-
-        // 判断获取锁是否成功
-        if (!isLock) {
-            // 获取锁失败
-            log.error("不允许重复下单！");
-            return;
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 1.通知消费者停止拉取
+        running = false;
+        seckillOrderExecutor.shutdown();
+        // 2.等待正在处理的订单完成，阻塞读取最多等待2秒
+        if (!seckillOrderExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            seckillOrderExecutor.shutdownNow();
         }
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
         try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            lock.unlock();
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), groupName);
+        } catch (Exception e) {
+            // 消费者组已存在时忽略，其他异常交给消费者循环中的NOGROUP处理重试
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                log.error("创建消费者组{}失败: {}", groupName, streamKey, e);
+            }
         }
     }
 
+    private class VoucherOrderHandler implements Runnable {
+        private final Consumer consumer;
+        // 消费者序号，决定负责的分区或者轮询的起始位置
+        private final int index;
 
-     */
-
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
+        private VoucherOrderHandler(String consumerName, int index) {
+            this.consumer = Consumer.from(groupName, consumerName);
+            this.index = index;
+        }
 
-    private class VoucherOrderHandler implements Runnable {
-        private final String QUEUE_NAME = "stream.orders";
+        // 负责的stream及下次刷新的时间
+        private List<String> streams = Collections.emptyList();
+        private long streamsRefreshAt = 0;
+        // 已经确认消费者组存在的stream
+        private final Set<String> grouped = new HashSet<>();
+        // stream -> 下次检查pending-list的时间，启动时先处理上次遗留的消息
+        private final Map<String, Long> pendingCheckAt = new HashMap<>();
 
         @Override
         public void run() {
-            while (true) {
+            while (running) {
+                String stream = null;
                 try {
-                    // 1.获取消息队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
-                    );
-
-                    // 2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        // 如果获取失败，说明没有信息，继续下一次循环
-                        continue;
+                    List<String> current = streams();
+                    boolean idle = true;
+                    for (String s : current) {
+                        stream = s;
+                        // 0.到期时处理pending-list中待重试的消息
+                        if (System.currentTimeMillis() >= pendingCheckAt.getOrDefault(stream, 0L)) {
+                            handlePendingList(stream);
+                        }
+                        // 1.获取消息队列中的订单信息，只负责一个stream时阻塞读取，最多攒够一批或等待maxWait
+                        List<MapRecord<String, Object, Object>> list = readBatch(stream, current.size() == 1);
+
+                        // 2.判断消息是否获取成功
+                        if (list.isEmpty()) {
+                            // 如果获取失败，说明没有信息，继续读下一个stream
+                            continue;
+                        }
+                        // 3.下单并ACK确认
+                        idle = false;
+                        handleRecords(stream, list);
+                    }
+                    // 4.轮询的stream都没有消息，等待一会再读
+                    if (idle && current.size() != 1) {
+                        Thread.sleep(pollInterval);
                     }
-                    // 3. 解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    // 5.ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, "g1", record.getId());
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常: {}", stream, e);
+                    if (stream == null) {
+                        continue;
+                    }
+                    // 消息队列或消费者组被删除，刷新stream列表时重新创建
+                    if (StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "NOGROUP")) {
+                        grouped.remove(stream);
+                        streamsRefreshAt = 0;
+                        continue;
+                    }
+                    // 失败的消息留在pending-list中，按退避时间逐条重试
+                    pendingCheckAt.put(stream, System.currentTimeMillis());
                 }
 
             }
+            log.info("秒杀订单消费者{}已停止", consumer.getName());
         }
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(QUEUE_NAME, ReadOffset.from("0"))
-                    );
-
-                    // 2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        // 如果获取失败，说明没有信息，结束循环
-                        break;
-                    }
-                    // 3. 解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    // 5.ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理Pending-List异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
+        private List<String> streams() {
+            long now = System.currentTimeMillis();
+            if (now < streamsRefreshAt) {
+                return streams;
+            }
+            List<String> all = seckillKeys.orderStreamKeys();
+            List<String> assigned;
+            if (all.isEmpty()) {
+                assigned = Collections.emptyList();
+            } else if (seckillKeys.isCluster()) {
+                // 集群布局下各分片stream在不同slot，不能用一条XREADGROUP读取，逐个轮询，各消费者从不同位置开始
+                assigned = new ArrayList<>(all);
+                Collections.rotate(assigned, -(index % all.size()));
+            } else {
+                // 默认布局下每个消费者只读一个分区
+                assigned = Collections.singletonList(all.get(index % all.size()));
+            }
+            for (String stream : assigned) {
+                if (grouped.add(stream)) {
+                    createGroupIfAbsent(stream);
                 }
-
             }
+            pendingCheckAt.keySet().retainAll(assigned);
+            streams = assigned;
+            streamsRefreshAt = now + STREAMS_REFRESH_INTERVAL;
+            return streams;
         }
-    }
 
+        private List<MapRecord<String, Object, Object>> readBatch(String stream, boolean block) {
+            // 1.阻塞读取，直到有消息或超时；轮询多个stream时不阻塞
+            StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    block ? options.block(Duration.ofSeconds(2)) : options,
+                    StreamOffset.create(stream, ReadOffset.lastConsumed())
+            );
+            if (list == null || list.isEmpty()) {
+                return Collections.emptyList();
+            }
+            if (!block) {
+                return list;
+            }
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(list);
+            // 2.未攒够一批时，在maxWait内继续读取
+            long deadline = System.currentTimeMillis() + batchMaxWait;
+            while (running && batch.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                list = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                        StreamOffset.create(stream, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取对象
-        Long userId = voucherOrder.getUserId();
+        private void handleRecords(String stream, List<MapRecord<String, Object, Object>> records) {
+            // 1.解析消息中的订单消息
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            RecordId[] recordIds = new RecordId[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, Object, Object> record = records.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
+            }
+            // 2.下单，单条消息走原有流程
+            if (voucherOrders.size() == 1) {
+                proxy.createVoucherOrder(voucherOrders.get(0));
+            } else {
+                proxy.createVoucherOrders(voucherOrders);
+            }
+            // 2.1 结算租约模式的订单，在ACK之前执行，每个订单只结算一次，消息重复投递不会重复归还库存或扣减租约
+            List<VoucherOrder> rejected = settleLeaseOrders(records, voucherOrders);
+            if (!rejected.isEmpty()) {
+                voucherOrders.removeAll(rejected);
+            }
+            // 3.整批ACK确认
+            stringRedisTemplate.opsForStream().acknowledge(stream, groupName, recordIds);
+            // 4.记录订单状态为已落库，被拒绝的重复订单为失败
+            updateStatus(voucherOrders, SeckillOrderStatus.PERSISTED);
+            if (!rejected.isEmpty()) {
+                updateStatus(rejected, SeckillOrderStatus.FAILED);
+            }
+            // 5.加入延迟队列，超时未支付自动取消
+            orderTimeoutCanceller.schedule(voucherOrders);
+            // 6.统计消费速度，排队放行按此控制人数
+            if (seckillWaitingRoom.isEnabled()) {
+                stringRedisTemplate.opsForValue().increment(SECKILL_ORDER_DRAINED_KEY, records.size());
+            }
+        }
 
-        // 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
+        private void handlePendingList(String stream) {
+            long now = System.currentTimeMillis();
+            // 没有失败时也定期检查，处理其他节点转移过来的消息
+            long nextCheckAt = now + pendingCheckInterval;
+            // 1.查询pending-list中的消息及其投递次数
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                    stream, consumer, Range.unbounded(), batchSize);
+            boolean retried = false;
+            for (PendingMessage message : pending) {
+                if (!running) {
+                    return;
+                }
+                long deliveries = message.getTotalDeliveryCount();
+                // 2.超过最大投递次数，转入死信队列，不再阻塞后面的消息
+                if (deliveries >= maxAttempts) {
+                    moveToDeadLetter(stream, message);
+                    continue;
+                }
+                // 3.未到退避时间，稍后再试
+                long wait = backoff(deliveries) - message.getElapsedTimeSinceLastDelivery().toMillis();
+                if (wait > 0) {
+                    nextCheckAt = Math.min(nextCheckAt, now + wait);
+                    continue;
+                }
+                // 4.重新认领并逐条下单，避免一条异常消息拖累整批
+                try {
+                    retried = true;
+                    retry(stream, message);
+                } catch (Exception e) {
+                    log.error("处理Pending-List异常, 消息: {}, 第{}次投递", message.getIdAsString(), deliveries + 1, e);
+                    nextCheckAt = Math.min(nextCheckAt, System.currentTimeMillis() + backoff(deliveries + 1));
+                }
+            }
+            // 5.本次处理满一批，可能还有更多消息，下一轮继续处理
+            if (retried && pending.size() >= batchSize) {
+                nextCheckAt = System.currentTimeMillis();
+            }
+            pendingCheckAt.put(stream, nextCheckAt);
+        }
 
-        // 获取锁
-        boolean isLock = lock.tryLock();
+        private void retry(String stream, PendingMessage message) {
+            // 1.XCLAIM认领消息，投递次数+1
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(
+                            stream.getBytes(StandardCharsets.UTF_8), groupName, consumer.getName(),
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(message.getId())));
+            if (claimed == null || claimed.isEmpty()) {
+                // 消息已经被删除，直接确认
+                stringRedisTemplate.opsForStream().acknowledge(stream, groupName, message.getId());
+                return;
+            }
+            // 2.下单并ACK确认
+            handleRecords(stream, Collections.singletonList(stringRedisTemplate.opsForStream().deserializeRecord(claimed.get(0))));
+        }
 
+        private void moveToDeadLetter(String stream, PendingMessage message) {
+            RecordId id = message.getId();
+            // 1.原消息写入死信队列，附带原id和投递次数便于排查，并记录订单状态为失败
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(stream, Range.closed(id.getValue(), id.getValue()));
+            if (records != null && !records.isEmpty()) {
+                Map<Object, Object> values = new HashMap<>(records.get(0).getValue());
+                values.put("originId", id.getValue());
+                values.put("stream", stream);
+                values.put("deliveryCount", String.valueOf(message.getTotalDeliveryCount()));
+                values.put("consumer", consumer.getName());
+                stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_KEY, values);
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(records.get(0).getValue(), new VoucherOrder(), true);
+                updateStatus(Collections.singletonList(voucherOrder), SeckillOrderStatus.FAILED);
+                // 1.1 租约模式的订单扣减租约，与秒杀脚本的订单一样保留已扣的库存和下单用户，由人工处理死信后补单或归还
+                Object node = records.get(0).getValue().get("node");
+                if (node != null) {
+                    stockLeaseManager.settle(node.toString(), Collections.singletonList(voucherOrder), Collections.emptyList());
+                }
+            }
+            // 2.从pending-list中移除
+            stringRedisTemplate.opsForStream().acknowledge(stream, groupName, id);
+            log.error("订单消息{}投递{}次仍失败，已转入死信队列", id, message.getTotalDeliveryCount());
+        }
+    }
 
-        // 判断获取锁是否成功
-        if (!isLock) {
-            // 获取锁失败
-            log.error("不允许重复下单！");
-            return;
+    // 租约模式的订单带有node字段，返回被唯一索引拒绝的订单(同一用户在其他节点已下单)
+    private List<VoucherOrder> settleLeaseOrders(List<MapRecord<String, Object, Object>> records, List<VoucherOrder> voucherOrders) {
+        // 1.按租用库存的节点分组
+        Map<String, List<VoucherOrder>> ordersByNode = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            Object node = records.get(i).getValue().get("node");
+            if (node != null) {
+                ordersByNode.computeIfAbsent(node.toString(), k -> new ArrayList<>()).add(voucherOrders.get(i));
+            }
         }
-        try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            lock.unlock();
+        if (ordersByNode.isEmpty()) {
+            return Collections.emptyList();
         }
+        // 2.订单id不在数据库中，说明插入时被忽略
+        List<Long> ids = ordersByNode.values().stream()
+                .flatMap(List::stream).map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> persistedIds = listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> rejected = new ArrayList<>();
+        ordersByNode.forEach((node, orders) -> {
+            Map<Boolean, List<VoucherOrder>> partitioned = orders.stream()
+                    .collect(Collectors.partitioningBy(o -> persistedIds.contains(o.getId())));
+            stockLeaseManager.settle(node, partitioned.get(true), partitioned.get(false));
+            rejected.addAll(partitioned.get(false));
+        });
+        return rejected;
     }
 
+    // 第n次投递失败后的重试等待时间，指数退避
+    private long backoff(long deliveries) {
+        return Math.min(retryBackoffMax, retryBackoff << Math.min(Math.max(deliveries - 1, 0), 20));
+    }
+
+
+    // 代理对象(事务)，消费者线程在启动时就可能处理订单，不能依赖请求线程中的AopContext
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.本地已标记售罄，直接返回，不再访问redis；租约模式下本节点还有租用的库存时继续卖
+        if (soldOutRegistry.isSoldOut(voucherId) && !stockLeaseManager.hasLocalStock(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 0.0 订单队列积压，暂时拒绝新的秒杀请求
+        if (orderLagMonitor.isShedding()) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
+        // 0.1 限流，超出的请求快速失败，不生成订单id也不执行lua脚本
+        if (!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+            return Result.fail("抢购人数过多，请稍后再试");
+        }
+        // 0.2 开启排队时，只有已放行的用户才能下单
+        if (seckillWaitingRoom.isEnabled() && !seckillWaitingRoom.query(voucherId, userId).getAdmitted()) {
+            return Result.fail("请先排队，等待放行后再下单");
+        }
         //  订单ID
         long orderId = redisIdWork.nextId("order");
 
+        // 0.3 热门优惠券使用本节点租用的库存，不执行lua脚本
+        if (stockLeaseManager.isEnabled(voucherId)) {
+            int r = stockLeaseManager.seckill(voucherId, userId, orderId);
+            if (r == 1) {
+                // 本地租约用完并且redis中已经没有库存可租，标记售罄；其他节点租用的库存由它们继续卖完，归还时清除标记
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            return r == 0 ? Result.ok(orderId) : Result.fail(failMessage(r));
+        }
+
         // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
+        int shards = getStockShards(voucherId);
+        Long result = shards > 1
+                ? seckillWithShards(voucherId, userId, orderId, shards)
+                : stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
-                Collections.emptyList(),
+                seckillKeys(voucherId, 0, 1),
                 voucherId.toString(),
                 userId.toString(),
-                String.valueOf(orderId)
+                String.valueOf(orderId),
+                String.valueOf(seckillOrderStatus.getTtl())
         );
         // 2.判断结果是否为0
-        int r = result.intValue();
+        int r = result == null ? -1 : result.intValue();
+        if (r == 1 && (shards == 1 || allShardsEmpty(voucherId, shards))) {
+            // 2.1 库存不足，标记售罄并通知其他节点；分片库存要等所有分片都没有库存，借用中的库存会被借用方卖出
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0) {
-            // 2.1 不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            // 2.2 不为0，代表没有购买资格
+            return Result.fail(failMessage(r));
         }
 
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        return Result.ok(orderId);
+    }
 
+    @Override
+    public Result queryOrderStatus(Long voucherId, Long orderId) {
+        // 只查询redis中的订单状态，不访问数据库；状态按用户记录，只能查到自己的订单
+        Long userId = UserHolder.getUser().getId();
+        String status = seckillOrderStatus.query(orderStatusKey(voucherId, userId), userId, orderId);
+        if (status == null) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
 
-        return Result.ok(orderId);
+    @Override
+    public SseEmitter subscribeEvents(Long voucherId) {
+        return seckillEventPusher.subscribe(voucherId, UserHolder.getUser().getId());
     }
 
-    /*
     @Override
-    public Result seckillVoucher(Long voucherId) {
-        // 1.查询数据库
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+    public Result joinQueue(Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            // 未开启排队，直接放行
+            return Result.ok(new QueueTicketDTO(true, 0L));
+        }
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return Result.ok(seckillWaitingRoom.join(voucherId, UserHolder.getUser().getId()));
+    }
 
-        // 2.判断秒杀是否开始
-        if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
-            // 尚未开始
-            return Result.fail("秒杀尚未开始!");
+    @Override
+    public Result queryQueue(Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            return Result.ok(new QueueTicketDTO(true, 0L));
         }
+        return Result.ok(seckillWaitingRoom.query(voucherId, UserHolder.getUser().getId()));
+    }
 
-        // 3. 判断秒杀是否结束
-        if (voucher.getEndTime().isBefore(LocalDateTime.now())) {
-            // 已经结束
-            return Result.fail("秒杀已经结束!");
+    // 脚本返回了未知的结果码时不抛出数组越界，按下单失败处理
+    private static String failMessage(int r) {
+        if (r > 0 && r < SECKILL_FAIL_MESSAGES.length) {
+            return SECKILL_FAIL_MESSAGES[r];
         }
+        log.error("未知的秒杀结果: {}", r);
+        return "下单失败，请稍后再试";
+    }
 
-        // 4.判断库存是否充足
-        if (voucher.getStock() < 1) {
-            // 库存不足
-            return Result.fail("库存不足");
+    private int getStockShards(Long voucherId) {
+        Integer shards = stockShardsCache.get(voucherId, false);
+        if (shards == null) {
+            // 不存在分片数，说明是普通库存
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+            shards = StrUtil.isBlank(value) ? 1 : Integer.parseInt(value);
+            stockShardsCache.put(voucherId, shards);
         }
+        return shards;
+    }
 
-        Long userId = UserHolder.getUser().getId();
-        // 创建锁对象
-        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
+    private static int homeShard(Long userId, int shards) {
+        return Math.floorMod(userId.hashCode(), shards);
+    }
 
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
+    // 秒杀脚本的KEYS：库存、下单用户、订单stream、秒杀信息、订单状态，集群布局下同一个分片的key在同一个slot
+    private List<String> seckillKeys(Long voucherId, int shard, int shards) {
+        return Arrays.asList(seckillKeys.stockKey(voucherId, shard, shards), seckillKeys.orderKey(voucherId, shard, shards),
+                seckillKeys.orderStreamKey(voucherId, shard), seckillKeys.voucherKey(voucherId, shard, shards),
+                seckillKeys.statusKey(voucherId, shard, shards));
+    }
 
-        // 获取锁
-        boolean isLock = lock.tryLock();
+    // 订单状态key，保存在用户所属分片
+    private String orderStatusKey(Long voucherId, Long userId) {
+        int shards = getStockShards(voucherId);
+        return seckillKeys.statusKey(voucherId, homeShard(userId, shards), shards);
+    }
 
+    private void updateStatus(List<VoucherOrder> voucherOrders, String status) {
+        Map<String, Map<String, String>> statusByKey = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            statusByKey.computeIfAbsent(orderStatusKey(voucherOrder.getVoucherId(), voucherOrder.getUserId()), k -> new HashMap<>())
+                    .put(SeckillOrderStatus.field(voucherOrder.getUserId(), voucherOrder.getId()), status);
+        }
+        seckillOrderStatus.update(statusByKey);
+        // 推送给等待结果的用户
+        seckillEventPusher.publishOrders(voucherOrders, status);
+    }
 
-        // 判断获取锁是否成功
-        if (!isLock) {
-            // 获取锁失败
-            return Result.fail("不允许重复下单！");
+    private Long seckillWithShards(Long voucherId, Long userId, long orderId, int shards) {
+        // 1.用户按hash固定路由到一个分片，一人一单只需在该分片内判断
+        int home = homeShard(userId, shards);
+        List<String> keys = seckillKeys(voucherId, home, shards);
+        String statusTtl = String.valueOf(seckillOrderStatus.getTtl());
+        Long result = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, keys,
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), statusTtl);
+        // 2.本分片库存不足时，依次向相邻分片借库存后重试
+        for (int i = 1; i < shards && result != null && result == 1; i++) {
+            String neighbourKey = seckillKeys.stockKey(voucherId, (home + i) % shards, shards);
+            // 2.1 默认布局下所有分片在同一个redis，借出和加到本分片在同一个脚本中完成
+            boolean atomic = !seckillKeys.isCluster();
+            Long borrowed = stringRedisTemplate.execute(STOCK_BORROW_SCRIPT,
+                    atomic ? Arrays.asList(neighbourKey, keys.get(0)) : Collections.singletonList(neighbourKey), "1");
+            if (borrowed == null || borrowed <= 0) {
+                // 相邻分片也没有库存了
+                continue;
+            }
+            // 2.2 集群布局下两个分片在不同slot，先从相邻分片扣除再加到本分片，不会超卖；
+            // 两步之间节点宕机会少一件库存，由库存对账发现后人工处理
+            if (!atomic) {
+                stringRedisTemplate.opsForValue().increment(keys.get(0), borrowed);
+            }
+            result = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, keys,
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), statusTtl);
         }
-        try {
-            // 获取代理对象(事务)
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            return proxy.createVoucherOrder(voucherId);
-        } finally {
-            // 释放锁
-            lock.unlock();
+        return result;
+    }
+
+    // 所有分片都没有库存时才算售罄，否则只是本次借用没有抢到
+    private boolean allShardsEmpty(Long voucherId, int shards) {
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(seckillKeys.stockKey(voucherId, i, shards));
         }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return false;
+        }
+        for (String value : values) {
+            if (StrUtil.isNotBlank(value) && Long.parseLong(value) > 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
-     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，按id顺序处理避免死锁
+        Map<Long, List<VoucherOrder>> ordersByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.toList()));
+        ordersByVoucher.forEach((voucherId, orders) -> {
+            // 2.多行插入创建订单，(user_id, voucher_id)唯一索引和订单id主键保证重复消息不会重复下单
+            int created = getBaseMapper().insertIgnoreBatch(orders);
+            if (created < orders.size()) {
+                log.error("优惠券{}有{}个重复订单被忽略！", voucherId, orders.size() - created);
+            }
+            if (created == 0) {
+                return;
+            }
+            // 3.只按实际创建的订单数合并扣减库存
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + created)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", created)
+                    .update();
+            if (!success) {
+                // 扣除失败，整批回滚，消息留在pending-list中按退避时间逐条重试，不能留下没有扣减库存的订单
+                throw new IllegalStateException("优惠券" + voucherId + "库存不足, 需要扣减" + created);
+            }
+        });
+    }
 
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单
-        // 查询用户id
-        Long userId = voucherOrder.getUserId();
-
-        // 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        // 1.创建订单，一人一单由(user_id, voucher_id)唯一索引保证，重复时忽略
+        int created = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
 
         // 判断是否存在
-        if (count > 0) {
-            // 用户已经购买
+        if (created == 0) {
+            // 用户已经购买或者是重复投递的消息
             log.error("用户已经购买过一次了！");
+            return;
         }
 
-        // 5.扣减库存
+        // 2.扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
                 .eq("voucher_id", voucherOrder.getVoucherId())
@@ -338,11 +748,27 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             // 扣除失败
             log.error("库存不足！");
         }
+    }
 
-        // 6.创建订单
-
-        save(voucherOrder);
-
-
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(VoucherOrder voucherOrder) {
+        // 1.只取消未支付的订单，并发支付时以数据库状态为准
+        boolean cancelled = update()
+                .set("status", 4)
+                .set("update_time", LocalDateTime.now())
+                .eq("id", voucherOrder.getId())
+                .eq("status", 1)
+                .update();
+        if (!cancelled) {
+            return false;
+        }
+        // 2.归还库存
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        voucherOrder.setStatus(4);
+        return true;
     }
 }
@@ -2,19 +2,27 @@ package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillLimitDTO;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -33,6 +41,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    // 秒杀库存分片数，大于1时开启分片库存
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -54,8 +71,35 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到redis当中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 秒杀时间窗口，由lua脚本按redis服务器时间校验。
+        // 每人限购固定为1件，不写入秒杀信息：数据库 (user_id, voucher_id, active) 唯一索引、redis下单用户集合、
+        // 租约模式跨节点去重和库存对账(库存 + 下单用户数 = 初始库存)都按一人一单设计，支持多件需要一起改成按用户计数
+        Map<String, String> window = new HashMap<>(2);
+        window.put("beginTime", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        window.put("endTime", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        // 保存秒杀信息和库存到redis当中，库存平均拆分到各个分片，余数分给前几个分片，秒杀信息每个分片保存一份
+        int shards = Math.max(1, stockShards);
+        int stock = voucher.getStock();
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForHash().putAll(seckillKeys.voucherKey(voucher.getId(), i, shards), window);
+            stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucher.getId(), i, shards), String.valueOf(shardStock));
+        }
+        // 集群布局下登记各分片的订单stream，消费者据此开始消费
+        seckillKeys.registerStreams(voucher.getId(), shards);
+        // 最后写入分片数，秒杀请求以此判断是否为分片模式
+        if (shards > 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_SHARDS_KEY + voucher.getId(), String.valueOf(shards));
+        }
+    }
+
+    @Override
+    public void updateSeckillLimit(Long voucherId, SeckillLimitDTO limit) {
+        seckillRateLimiter.updateLimit(voucherId, limit);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
 }
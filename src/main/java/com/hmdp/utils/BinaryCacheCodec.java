@@ -0,0 +1,417 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编码，按字段反射读写，不经过json的中间对象。
+ * <p>
+ * 格式(版本1)：种类(1字节)，单值为 [类型][值]，对象为 [字段数(变长)] 后跟每个非空字段的 [标签(2字节)][类型(1字节)][值]。
+ * 标签由字段名计算，读取时跳过本地类中不存在的字段，类型不同时按本地字段类型转换，
+ * 新旧版本的类增删字段后仍然可以互相读取。
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte ID = 1;
+
+    private static final byte VERSION = 1;
+
+    // 种类
+    private static final byte KIND_VALUE = 0;
+    private static final byte KIND_BEAN = 1;
+
+    // 值的类型
+    private static final byte VARINT = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte FLOAT = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+    private static final byte DATE_TIME = 6;
+    private static final byte DATE = 7;
+    // 其他类型按json字符串保存
+    private static final byte JSON = 8;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        byte type = typeOf(value.getClass());
+        if (type != JSON) {
+            out.writeByte(KIND_VALUE);
+            out.writeByte(type);
+            writeValue(out, type, value);
+            return out.toByteArray();
+        }
+        // 对象按字段编码，空字段不写入
+        Schema schema = schema(value.getClass());
+        Object[] values = new Object[schema.fields.length];
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = schema.fields[i].get(value);
+            if (values[i] != null) {
+                count++;
+            }
+        }
+        out.writeByte(KIND_BEAN);
+        out.writeVarLong(count);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            FieldInfo field = schema.fields[i];
+            out.writeShort(field.tag);
+            out.writeByte(field.type);
+            writeValue(out, field.type, values[i]);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, byte version, Class<T> type) {
+        Input in = new Input(bytes, offset);
+        byte kind = in.readByte();
+        if (kind == KIND_VALUE) {
+            byte valueType = in.readByte();
+            return type.cast(adapt(readValue(in, valueType), type));
+        }
+        Schema schema = schema(type);
+        T bean = schema.newInstance(type);
+        long count = in.readVarLong();
+        for (long i = 0; i < count; i++) {
+            short tag = in.readShort();
+            byte valueType = in.readByte();
+            Object value = readValue(in, valueType);
+            FieldInfo field = schema.byTag.get(tag);
+            // 本地类中已经没有的字段直接跳过
+            if (field != null) {
+                field.set(bean, adapt(value, field.javaType));
+            }
+        }
+        return bean;
+    }
+
+    private static byte typeOf(Class<?> type) {
+        if (type == Long.class || type == long.class || type == Integer.class || type == int.class
+                || type == Short.class || type == short.class || type == Byte.class || type == byte.class) {
+            return VARINT;
+        }
+        if (type == Double.class || type == double.class) {
+            return DOUBLE;
+        }
+        if (type == Float.class || type == float.class) {
+            return FLOAT;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return BOOLEAN;
+        }
+        if (type == String.class) {
+            return STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return DATE_TIME;
+        }
+        if (type == LocalDate.class) {
+            return DATE;
+        }
+        return JSON;
+    }
+
+    private static void writeValue(Output out, byte type, Object value) {
+        switch (type) {
+            case VARINT:
+                out.writeVarLong(zigzag(((Number) value).longValue()));
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case BOOLEAN:
+                out.writeByte((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case STRING:
+                out.writeString((String) value);
+                break;
+            case DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(zigzag(time.toEpochSecond(ZoneOffset.UTC)));
+                out.writeVarLong(time.getNano());
+                break;
+            case DATE:
+                out.writeVarLong(zigzag(((LocalDate) value).toEpochDay()));
+                break;
+            default:
+                out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readValue(Input in, byte type) {
+        switch (type) {
+            case VARINT:
+                return unzigzag(in.readVarLong());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case STRING:
+            case JSON:
+                return in.readString();
+            case DATE_TIME:
+                long seconds = unzigzag(in.readVarLong());
+                return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+            case DATE:
+                return LocalDate.ofEpochDay(unzigzag(in.readVarLong()));
+            default:
+                throw new IllegalStateException("未知的字段类型: " + type);
+        }
+    }
+
+    /**
+     * 把读出的值转换为本地字段的类型，字段类型变化后仍能读取旧数据
+     */
+    private static Object adapt(Object value, Class<?> type) {
+        if (type.isInstance(value)) {
+            return value;
+        }
+        if (value instanceof Long) {
+            long v = (Long) value;
+            if (type == Integer.class || type == int.class) {
+                return (int) v;
+            }
+            if (type == Long.class || type == long.class) {
+                return v;
+            }
+        }
+        if (value instanceof String && typeOf(type) == JSON) {
+            return JSONUtil.toBean((String) value, type);
+        }
+        return Convert.convertQuietly(type, value);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final FieldInfo[] fields;
+        private final Map<Short, FieldInfo> byTag = new HashMap<>();
+
+        private Schema(Class<?> type) {
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("缓存对象需要无参构造方法: " + type.getName(), e);
+            }
+            List<FieldInfo> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    FieldInfo info = new FieldInfo(field);
+                    if (byTag.putIfAbsent(info.tag, info) != null) {
+                        throw new IllegalArgumentException("字段标签冲突: " + type.getName() + "." + field.getName());
+                    }
+                    list.add(info);
+                }
+            }
+            fields = list.toArray(new FieldInfo[0]);
+        }
+
+        private <T> T newInstance(Class<T> type) {
+            try {
+                return type.cast(constructor.newInstance());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("无法创建缓存对象: " + type.getName(), e);
+            }
+        }
+    }
+
+    private static class FieldInfo {
+        private final Field field;
+        private final Class<?> javaType;
+        private final short tag;
+        private final byte type;
+
+        private FieldInfo(Field field) {
+            field.setAccessible(true);
+            this.field = field;
+            this.javaType = field.getType();
+            int hash = field.getName().hashCode();
+            this.tag = (short) (hash ^ (hash >>> 16));
+            this.type = typeOf(javaType);
+        }
+
+        private Object get(Object bean) {
+            try {
+                return field.get(bean);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void set(Object bean, Object value) {
+            // 无法转换的值保持默认值
+            if (value == null && javaType.isPrimitive()) {
+                return;
+            }
+            try {
+                field.set(bean, value);
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                throw new IllegalStateException("无法写入字段: " + field, e);
+            }
+        }
+    }
+
+    private static class Output {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        private void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        private void writeShort(short v) {
+            ensure(2);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        private void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        private void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        private void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        private Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private byte readByte() {
+            return buf[pos++];
+        }
+
+        private short readShort() {
+            return (short) (((buf[pos++] & 0xFF) << 8) | (buf[pos++] & 0xFF));
+        }
+
+        private int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("变长整数格式错误");
+        }
+
+        private String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
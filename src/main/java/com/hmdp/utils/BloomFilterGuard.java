@@ -0,0 +1,354 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 按实体类型的id布隆过滤器，缓存查询前判断id是否一定不存在，防止随机id穿透到redis和数据库。
+ * <p>
+ * 位图保存在redis中，启动时由一个节点从数据库分页读取全部id构建，各节点在本地保存一份副本，查询只读本地副本。
+ * 新增id时同时写入redis位图和本地副本，并通过发布订阅通知其他节点；通知丢失时由定期同步补上，
+ * 在此之前其他节点可能把新id误判为不存在。绕过应用直接写入数据库的数据需要删除 bloom:{name}:meta 触发重建。
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard implements MessageListener {
+
+    private static final String READY = "1";
+
+    // 构建过滤器的线程，不阻塞应用启动，构建完成之前不拦截任何id
+    private static final ExecutorService BUILD_EXECUTOR = Executors.newSingleThreadExecutor(
+            ThreadUtil.newNamedThreadFactory("bloom-build-", true));
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 是否开启布隆过滤器
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    // 构建时每页从数据库读取的id数
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    // 构建锁的过期时间(秒)，需要大于构建耗时
+    @Value("${hmdp.bloom.build-lock-ttl:600}")
+    private long buildLockTtl;
+
+    // 缓存key前缀 -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    // 是否有定期同步在排队或执行，上一轮没有完成时跳过本轮
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /**
+     * 按id游标分页读取数据库中的id
+     */
+    public interface IdPager {
+        List<Long> queryIdsAfter(Long cursor, int limit);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        }
+    }
+
+    /**
+     * 注册一个过滤器并在后台构建
+     *
+     * @param keyPrefix          使用该过滤器的缓存key前缀
+     * @param name               过滤器名称，决定redis中的key
+     * @param expectedInsertions 预计的id数量
+     * @param fpp                期望的误判率
+     * @param pager              从数据库分页读取id
+     */
+    public void register(String keyPrefix, String name, long expectedInsertions, double fpp, IdPager pager) {
+        if (!enabled) {
+            return;
+        }
+        Filter filter = new Filter(name, expectedInsertions, fpp, pager);
+        filters.put(keyPrefix, filter);
+        log.info("布隆过滤器 {}: 位数={}, 哈希函数数={}", name, filter.bitSize, filter.hashes);
+        BUILD_EXECUTOR.execute(() -> refresh(filter));
+    }
+
+    /**
+     * id是否可能存在，没有注册过滤器或者还没有构建完成时返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        return filter == null || filter.mightContain(String.valueOf(id));
+    }
+
+    /**
+     * 新增id，写入redis位图和本地副本，并通知其他节点
+     */
+    public void add(String keyPrefix, Object id) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null || id == null) {
+            return;
+        }
+        String member = String.valueOf(id);
+        long[] offsets = filter.offsets(member);
+        byte[] key = bytes(bloomKey(filter.name));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.stringCommands().setBit(key, offset, true);
+            }
+            return null;
+        });
+        filter.setLocal(offsets);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, filter.name + ":" + member);
+    }
+
+    /**
+     * 定期从redis同步本地副本，补上丢失的新增通知；redis中没有可用的位图时尝试重新构建。
+     * 读取位图和重建可能很慢，交给构建线程执行，不占用定时任务线程
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.refresh-interval:60000}",
+            initialDelayString = "${hmdp.bloom.refresh-interval:60000}")
+    public void refreshAll() {
+        if (filters.isEmpty() || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        BUILD_EXECUTOR.execute(() -> {
+            try {
+                for (Filter filter : filters.values()) {
+                    refresh(filter);
+                }
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String name = StrUtil.subBefore(body, ":", false);
+        String member = StrUtil.subAfter(body, ":", false);
+        for (Filter filter : filters.values()) {
+            if (filter.name.equals(name)) {
+                filter.setLocal(filter.offsets(member));
+            }
+        }
+    }
+
+    private void refresh(Filter filter) {
+        try {
+            // 1.redis中的位图参数不同或者没有构建完成时，重新构建
+            Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(bloomMetaKey(filter.name));
+            boolean built = false;
+            if (!filter.matches(meta) || !READY.equals(meta.get("ready"))) {
+                if (!build(filter)) {
+                    // 其他节点正在构建，下一轮再同步
+                    return;
+                }
+                built = true;
+            }
+            // 2.读取位图，位图被删除或淘汰后只剩新增id写入的位时同样需要重建，否则会把存在的id判断为不存在
+            byte[] bits = readBits(filter);
+            if (!filter.isIntact(bits) && !built && build(filter)) {
+                bits = readBits(filter);
+            }
+            if (!filter.isIntact(bits)) {
+                // 不完整的位图不加载，本地副本保持原样，还没有副本时继续放行所有id
+                log.warn("布隆过滤器 {} 的位图不完整，等待重建", filter.name);
+                return;
+            }
+            // 3.合并到本地副本
+            filter.load(bits);
+        } catch (Exception e) {
+            log.error("同步布隆过滤器失败: {}", filter.name, e);
+        }
+    }
+
+    /**
+     * 从数据库读取全部id构建位图，只有一个节点执行
+     *
+     * @return 是否由本节点完成构建
+     */
+    private boolean build(Filter filter) {
+        String lockKey = bloomLockKey(filter.name);
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", buildLockTtl, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return false;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            String metaKey = bloomMetaKey(filter.name);
+            // 1.参数变化后旧的位图不能再用
+            Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(metaKey);
+            if (!meta.isEmpty() && !filter.matches(meta)) {
+                stringRedisTemplate.delete(bloomKey(filter.name));
+            }
+            Map<String, String> building = new HashMap<>(4);
+            building.put("bits", String.valueOf(filter.bitSize));
+            building.put("hashes", String.valueOf(filter.hashes));
+            building.put("ready", "0");
+            stringRedisTemplate.opsForHash().putAll(metaKey, building);
+
+            // 2.分页读取id，在内存中构建完整的位图
+            byte[] bits = new byte[filter.byteSize()];
+            long count = 0;
+            long cursor = 0;
+            List<Long> page;
+            do {
+                page = filter.pager.queryIdsAfter(cursor, pageSize);
+                for (Long id : page) {
+                    Filter.setBits(bits, filter.offsets(String.valueOf(id)));
+                }
+                count += page.size();
+                if (!page.isEmpty()) {
+                    cursor = page.get(page.size() - 1);
+                }
+            } while (page.size() == pageSize);
+
+            // 3.写入临时key后与正在使用的位图按位或，构建期间新增的id不会被覆盖
+            byte[] key = bytes(bloomKey(filter.name));
+            byte[] buildKey = bytes(bloomBuildKey(filter.name));
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.stringCommands().set(buildKey, bits);
+                connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, key, key, buildKey);
+                connection.keyCommands().del(buildKey);
+                return null;
+            });
+            stringRedisTemplate.opsForHash().put(metaKey, "ready", READY);
+            log.info("布隆过滤器 {} 构建完成, id数={}, 耗时={}ms", filter.name, count, System.currentTimeMillis() - begin);
+            return true;
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    private byte[] readBits(Filter filter) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(bytes(bloomKey(filter.name))));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Filter {
+        private final String name;
+        private final long bitSize;
+        private final int hashes;
+        private final IdPager pager;
+        // 本地副本，与redis位图的字节布局相同(每个字节的最高位是第0位)，构建完成之前为null；
+        // 查询不加锁读取，数组发布后不再修改，写入时复制一份再替换
+        private volatile byte[] mirror;
+
+        private Filter(String name, long expectedInsertions, double fpp, IdPager pager) {
+            this.name = name;
+            this.pager = pager;
+            // m = -n*ln(p)/(ln2)^2，k = m/n*ln2，位数取8的倍数
+            long n = Math.max(1, expectedInsertions);
+            long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bitSize = Math.max(64, (m + 7) / 8 * 8);
+            this.hashes = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        }
+
+        private int byteSize() {
+            return (int) (bitSize / 8);
+        }
+
+        // 构建时写入的是完整长度的位图，长度不足说明位图丢失过
+        private boolean isIntact(byte[] bits) {
+            return bits != null && bits.length >= byteSize();
+        }
+
+        private boolean matches(Map<Object, Object> meta) {
+            return String.valueOf(bitSize).equals(meta.get("bits")) && String.valueOf(hashes).equals(meta.get("hashes"));
+        }
+
+        /**
+         * 由128位murmur哈希的两半组合出k个位置(Kirsch-Mitzenmacher)，各节点计算结果相同
+         */
+        private long[] offsets(String member) {
+            long[] hash = MurmurHash.hash128(member);
+            long[] offsets = new long[hashes];
+            for (int i = 0; i < hashes; i++) {
+                offsets[i] = Math.floorMod(hash[0] + i * hash[1], bitSize);
+            }
+            return offsets;
+        }
+
+        private boolean mightContain(String member) {
+            byte[] bits = mirror;
+            if (bits == null) {
+                return true;
+            }
+            for (long offset : offsets(member)) {
+                if ((bits[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private synchronized void setLocal(long[] offsets) {
+            byte[] old = mirror;
+            if (old != null) {
+                byte[] bits = old.clone();
+                setBits(bits, offsets);
+                mirror = bits;
+            }
+        }
+
+        /**
+         * 用redis中的位图替换本地副本，同时保留本地已经写入的位，没有读到位图时保持原样
+         */
+        private synchronized void load(byte[] loaded) {
+            if (loaded == null) {
+                return;
+            }
+            byte[] bits = new byte[byteSize()];
+            System.arraycopy(loaded, 0, bits, 0, Math.min(loaded.length, bits.length));
+            byte[] old = mirror;
+            if (old != null) {
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] |= old[i];
+                }
+            }
+            mirror = bits;
+        }
+
+        private static void setBits(byte[] bits, long[] offsets) {
+            for (long offset : offsets) {
+                bits[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+    }
+}
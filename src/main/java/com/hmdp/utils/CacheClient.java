@@ -1,114 +1,358 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.ArrayUtil;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 两级缓存：本地缓存(L1，可选) + redis(L2)。
+ * 本地缓存保存反序列化后的对象，命中时不访问redis也不需要反序列化，调用方不能修改返回的对象。
+ * redis中的值由 {@link CacheSerializer} 按配置的编码器序列化。
+ * 通过本客户端写入或删除key时，会经redis发布订阅通知所有节点清除本地缓存；
+ * 发布订阅不保证送达，本地缓存的过期时间就是节点间数据不一致的最长时间。
+ * <p>
+ * 缓存未命中时，同一节点内对同一个key的并发查询合并为一次(single-flight)，其余调用方等待同一个结果；
+ * 互斥锁模式下每个节点只有一个调用方竞争分布式锁，没抢到锁时等待其他节点重建完成的通知，而不是固定休眠。
+ * <p>
+ * 写入的过期时间随机延长一部分，同时预热的key不会同时过期。读取redis时按XFetch算法以一定概率在过期前提前重建：
+ * 剩余时间越短、最近一次重建越慢，提前重建的概率越大，热点key在过期之前就会被后台刷新，不需要互斥锁。
+ * <p>
+ * 为key前缀注册了 {@link BloomFilterGuard} 时，过滤器判断id一定不存在的查询直接返回null，不访问redis和数据库。
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+    // 本地缓存的空值标记，对应redis中的空字符串
+    private static final Object NULL_VALUE = new Object();
+
     private final StringRedisTemplate stringRedisTemplate;
 
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final CacheSerializer cacheSerializer;
+
+    private final BloomFilterGuard bloomFilterGuard;
+
+    // 是否开启本地缓存
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+
+    // 本地缓存的最大key数量，超过后淘汰最久未访问的key
+    @Value("${hmdp.cache.local.capacity:10000}")
+    private int localCapacity;
+
+    // 本地缓存的过期时间(毫秒)
+    @Value("${hmdp.cache.local.ttl:5000}")
+    private long localTtl;
+
+    // 没抢到锁时等待其他节点重建缓存的最长时间(毫秒)，超时后直接查询数据库
+    @Value("${hmdp.cache.rebuild.max-wait:3000}")
+    private long rebuildMaxWait;
+
+    // 等待重建期间检查redis的间隔(毫秒)，重建完成的通知丢失时兜底
+    @Value("${hmdp.cache.rebuild.poll-interval:100}")
+    private long rebuildPollInterval;
+
+    // 过期时间随机延长的最大比例，0表示不延长
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+
+    // 提前重建的权重，越大越早重建，0表示关闭
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+
+    // 还没有重建耗时的样本时使用的耗时(毫秒)
+    @Value("${hmdp.cache.early-refresh.default-delta:50}")
+    private long defaultRebuildDelta;
+
+    private LRUCache<String, Object> localCache;
+
+    // key -> 本节点正在进行的查询，并发的调用方共享同一个结果
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // key -> 等待其他节点重建缓存的信号，收到该key的写入通知时唤醒
+    private final Map<String, CompletableFuture<Void>> rebuildSignals = new ConcurrentHashMap<>();
+
+    // key前缀 -> 本节点最近一次查询数据库重建缓存的耗时(毫秒)
+    private final Map<String, Long> rebuildDeltas = new ConcurrentHashMap<>();
+
+    // 本节点正在后台提前重建的key，同一个key只提交一次
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    // 本节点收到的失效通知次数
+    private final AtomicLong invalidations = new AtomicLong();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 按key哈希分段的失效通知次数，用于丢弃查询redis期间已经失效的结果，其他key的失效不影响本key写入本地缓存
+    private static final int STAMP_STRIPES = 1024;
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder bloomRejected = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer,
+                       CacheSerializer cacheSerializer, BloomFilterGuard bloomFilterGuard) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.cacheSerializer = cacheSerializer;
+        this.bloomFilterGuard = bloomFilterGuard;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (localEnabled) {
+            localCache = CacheUtil.newLRUCache(localCapacity, localTtl);
+        }
+        // 不开启本地缓存时也需要订阅，用于唤醒等待重建的调用方
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        setRaw(key, cacheSerializer.serialize(value), Expiration.milliseconds(jitter(timeUnit.toMillis(time))));
+        publishInvalidation(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
         // 封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        LocalDateTime expireTime = LocalDateTime.now().plus(Duration.ofMillis(jitter(timeUnit.toMillis(time))));
 
         // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, cacheSerializer.serialize(value, expireTime), Expiration.persistent());
+        publishInvalidation(key);
     }
 
-
-
+    /**
+     * 删除缓存，并通知所有节点清除本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        publishInvalidation(key);
+    }
 
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
 
         String key = keyPrefix + id;
 
-        // 1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 布隆过滤器判断id一定不存在，直接返回
+        if (isRejected(keyPrefix, id)) {
+            return null;
+        }
+
+        // 0.先查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            localHits.increment();
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        long stamp = stamp(key);
+
+        // 1.从redis中查询商铺缓存，快过期时按概率在后台提前重建
+        byte[] cached = getAndRefreshAhead(key, keyPrefix, id, dbFallback, time, timeUnit);
 
         // 2.判断是否存在,isNotBlank的三种情况1.null  2.""  3."\t\n"
-        if (StrUtil.isNotBlank(json)) {
+        if (ArrayUtil.isNotEmpty(cached)) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            redisHits.increment();
+            R r = cacheSerializer.deserialize(cached, type);
+            putLocal(key, r, stamp);
+            return r;
         }
 
         // 判断是否命中空值
-        if (json != null) {
+        if (cached != null) {
+            redisHits.increment();
+            putLocal(key, NULL_VALUE, stamp);
             return null;
         }
 
-        // 4.不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+        // 4.不存在，根据id查询数据库，本节点的并发查询只查一次
+        return singleFlight(key, () -> {
+            misses.increment();
+            R r = load(keyPrefix, id, dbFallback);
 
-        // 5.不存在
-        if (r == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
+            // 5.不存在
+            if (r == null) {
+                // 将空值写入redis
+                setNull(key);
+                // 返回错误信息
+                return null;
+            }
+
+
+            // 6.存在，写入redis
+            this.set(key, r, time, timeUnit );
+
+            // 返回
+            return r;
+        });
+    }
+
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+
+        // 布隆过滤器判断id一定不存在，直接返回
+        if (isRejected(keyPrefix, id)) {
             return null;
         }
 
+        // 0.先查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            localHits.increment();
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        long stamp = stamp(key);
 
-        // 6.存在，写入redis
-        this.set(key, r, time, timeUnit );
+        // 1.从redis中查询缓存，快过期时按概率在后台提前重建
+        byte[] cached = getAndRefreshAhead(key, keyPrefix, id, dbFallback, time, timeUnit);
 
-        // 返回
-        return r;
+        // 2.判断是否存在
+        if (ArrayUtil.isNotEmpty(cached)) {
+            // 3.存在，直接返回
+            redisHits.increment();
+            R r = cacheSerializer.deserialize(cached, type);
+            putLocal(key, r, stamp);
+            return r;
+        }
+
+        // 判断是否命中空值
+        if (cached != null) {
+            redisHits.increment();
+            putLocal(key, NULL_VALUE, stamp);
+            return null;
+        }
+
+        // 4.实现缓存重建，本节点只有一个调用方竞争互斥锁，其余等待它的结果
+        return singleFlight(key, () -> rebuildWithMutex(key, keyPrefix, cacheLockKey(key), id, type, dbFallback, time, timeUnit));
+    }
+
+    private <R, ID> R rebuildWithMutex(String key, String keyPrefix, String lockKey, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        long deadline = System.currentTimeMillis() + rebuildMaxWait;
+        try {
+            while (true) {
+                // 4.1先登记等待信号再检查redis，检查之后才完成的重建也能收到通知
+                CompletableFuture<Void> signal = rebuildSignals.computeIfAbsent(key, k -> new CompletableFuture<>());
+                byte[] cached = getRaw(key);
+                if (cached != null) {
+                    // 其他节点已经重建完成
+                    redisHits.increment();
+                    return cached.length == 0 ? null : cacheSerializer.deserialize(cached, type);
+                }
+                // 4.2获取互斥锁
+                if (tryLock(lockKey)) {
+                    try {
+                        // 4.3成功，根据id查询数据库
+                        misses.increment();
+                        R r = load(keyPrefix, id, dbFallback);
+                        // 5.不存在，将空值写入redis
+                        if (r == null) {
+                            setNull(key);
+                            return null;
+                        }
+                        // 6.存在，写入redis
+                        this.set(key, r, time, timeUnit);
+                        return r;
+                    } finally {
+                        // 7.释放互斥锁
+                        unLock(lockKey);
+                    }
+                }
+                // 4.4失败，等待其他节点重建完成的通知，超时后直接查询数据库，不写入缓存
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.warn("等待缓存重建超时, key={}", key);
+                    misses.increment();
+                    return dbFallback.apply(id);
+                }
+                awaitSignal(signal, Math.min(remaining, rebuildPollInterval));
+            }
+        } finally {
+            rebuildSignals.remove(key);
+        }
     }
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time, TimeUnit timeUnit) {
         String key = keyPrefix+id;
+
+        // 布隆过滤器判断id一定不存在，直接返回
+        if (isRejected(keyPrefix, id)) {
+            return null;
+        }
+
+        // 0.本地缓存命中且未逻辑过期时直接返回，过期后走redis判断是否需要重建
+        Object local = getLocal(key);
+        if (local instanceof RedisData && ((RedisData) local).getExpireTime().isAfter(LocalDateTime.now())) {
+            localHits.increment();
+            return type.cast(((RedisData) local).getData());
+        }
+        long stamp = stamp(key);
+
         // 1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = getRaw(key);
 
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (ArrayUtil.isEmpty(cached)) {
             // 3.不存在，直接返回
+            misses.increment();
             return null;
         }
+        redisHits.increment();
 
-        // 4.命中，需要先将Json反序列化成对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
+        // 4.命中，反序列化成对象，data已经是目标类型
+        RedisData redisData = cacheSerializer.deserializeWithExpire(cached, type);
+        R r = type.cast(redisData.getData());
 
         LocalDateTime expireTime = redisData.getExpireTime();
 
         // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1未过期，直接返回店铺信息
-            return r;
+        LocalDateTime now = LocalDateTime.now();
+        if (expireTime.isAfter(now)) {
+            putLocal(key, redisData, stamp);
+            // 5.1未过期，直接返回店铺信息；快过期时按概率提前重建
+            if (!shouldRefreshEarly(keyPrefix, Duration.between(now, expireTime).toMillis())) {
+                return r;
+            }
+            earlyRefreshes.increment();
         }
 
-        // 6.已过期，需要缓存重建
+        // 6.已过期或需要提前重建，需要缓存重建
         // 6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY +  id;
+        String lockKey = cacheLockKey(key);
         boolean isLock = tryLock(lockKey);
 
         // 6.2 判断是否获取锁成功
@@ -117,7 +361,7 @@ public class CacheClient {
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
                     // 查询数据库
-                    R r1 = dbFallback.apply(id);
+                    R r1 = load(keyPrefix, id, dbFallback);
                     // 6.存在，写入redis
                     this.setWithLogicalExpire(key,r1,time,timeUnit);
                 } catch (Exception e) {
@@ -133,6 +377,258 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 各级缓存的命中情况，用于评估本地缓存的容量和过期时间
+     */
+    public Map<String, Object> stats() {
+        long local = localHits.sum();
+        long redis = redisHits.sum();
+        long miss = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localEnabled", localEnabled);
+        stats.put("localSize", localCache == null ? 0 : localCache.size());
+        stats.put("localCapacity", localCache == null ? 0 : localCapacity);
+        stats.put("localHits", local);
+        stats.put("redisHits", redis);
+        stats.put("misses", miss);
+        stats.put("coalesced", coalesced.sum());
+        stats.put("bloomRejected", bloomRejected.sum());
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        stats.put("rebuildDeltas", new LinkedHashMap<>(rebuildDeltas));
+        stats.put("invalidations", invalidations.get());
+        // 本地缓存命中率：本地命中 / 全部请求；redis命中率：redis命中 / 本地未命中的请求
+        stats.put("localHitRatio", ratio(local, local + redis + miss));
+        stats.put("redisHitRatio", ratio(redis, redis + miss));
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        invalidateLocal(key);
+        // 唤醒等待该key重建的调用方
+        CompletableFuture<Void> signal = rebuildSignals.remove(key);
+        if (signal != null) {
+            signal.complete(null);
+        }
+    }
+
+    /**
+     * 同一个key同时只有一个调用方执行loader，其余调用方等待并共享它的结果或异常
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            future = existing;
+        } else {
+            try {
+                future.complete(loader.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+        try {
+            return (R) future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private void awaitSignal(CompletableFuture<Void> signal, long timeoutMillis) {
+        try {
+            signal.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 超时后重新检查redis
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 读取缓存值，开启提前重建时在同一次往返中读取剩余过期时间，按XFetch算法决定是否在后台提前重建
+     */
+    private <R, ID> byte[] getAndRefreshAhead(String key, String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        if (earlyRefreshBeta <= 0) {
+            return getRaw(key);
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            connection.stringCommands().get(rawKey);
+            connection.keyCommands().pTtl(rawKey);
+            return connection.closePipeline();
+        });
+        byte[] cached = (byte[]) results.get(0);
+        if (cached != null && !cacheSerializer.isReadable(cached)) {
+            log.debug("无法解析的缓存格式, key={}", key);
+            return null;
+        }
+        // 空值很快过期，不提前重建
+        if (ArrayUtil.isNotEmpty(cached) && shouldRefreshEarly(keyPrefix, (Long) results.get(1))) {
+            refreshAhead(key, keyPrefix, id, dbFallback, time, timeUnit);
+        }
+        return cached;
+    }
+
+    /**
+     * XFetch：-delta * beta * ln(rand) >= 剩余时间时提前重建，delta为重建耗时，rand为(0,1)的随机数。
+     * 剩余时间远大于重建耗时时概率接近0，临近过期时迅速接近1
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, long remainingMillis) {
+        if (earlyRefreshBeta <= 0 || remainingMillis <= 0) {
+            return false;
+        }
+        long delta = Math.max(1, rebuildDeltas.getOrDefault(keyPrefix, defaultRebuildDelta));
+        return -delta * earlyRefreshBeta * Math.log(ThreadLocalRandom.current().nextDouble()) >= remainingMillis;
+    }
+
+    /**
+     * 在后台重建缓存，调用方继续使用还没过期的值，本节点同一个key只重建一次，节点之间由概率错开
+     */
+    private <R, ID> void refreshAhead(String key, String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        earlyRefreshes.increment();
+        try {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    R r = load(keyPrefix, id, dbFallback);
+                    if (r == null) {
+                        setNull(key);
+                    } else {
+                        this.set(key, r, time, timeUnit);
+                    }
+                } catch (Exception e) {
+                    log.error("提前重建缓存失败, key={}", key, e);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+        }
+    }
+
+    /**
+     * 查询数据库，记录耗时作为该key前缀下次提前重建的delta
+     */
+    private <R, ID> R load(String keyPrefix, ID id, Function<ID, R> dbFallback) {
+        long begin = System.nanoTime();
+        R r = dbFallback.apply(id);
+        rebuildDeltas.put(keyPrefix, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        return r;
+    }
+
+    /**
+     * 过期时间随机延长 [0, ttlJitter) 的比例，只延长不缩短，不影响调用方期望的最短有效期
+     */
+    private long jitter(long millis) {
+        if (ttlJitter <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private boolean isRejected(String keyPrefix, Object id) {
+        if (bloomFilterGuard.mightContain(keyPrefix, id)) {
+            return false;
+        }
+        bloomRejected.increment();
+        return true;
+    }
+
+    private Object getLocal(String key) {
+        if (localCache == null) {
+            return null;
+        }
+        // 不刷新访问时间，热点key也会按时过期
+        return localCache.get(key, false);
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % STAMP_STRIPES;
+    }
+
+    private long stamp(String key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * 写入本地缓存，stamp为查询redis之前该key所在分段的失效通知次数，
+     * 查询期间该key(或同一分段的其他key)收到过失效通知时，查到的可能是旧值，不能放入本地缓存
+     */
+    private void putLocal(String key, Object value, long stamp) {
+        if (localCache == null) {
+            return;
+        }
+        localCache.put(key, value);
+        // 先写入再检查，失效通知在检查之前到达时由这里删除，在检查之后到达时由通知删除
+        if (stamps.get(stripe(key)) != stamp) {
+            localCache.remove(key);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache == null) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        stamps.incrementAndGet(stripe(key));
+        localCache.remove(key);
+    }
+
+    /**
+     * 写入空值防止缓存穿透，同样发出通知，唤醒等待重建的调用方
+     */
+    private void setNull(String key) {
+        stringRedisTemplate.opsForValue().set(key, "", jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+        publishInvalidation(key);
+    }
+
+    /**
+     * 读取原始的缓存值，本节点无法解析的值(其他节点使用了更新的编码格式)视为未命中
+     */
+    private byte[] getRaw(String key) {
+        byte[] cached = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+        if (cached != null && !cacheSerializer.isReadable(cached)) {
+            log.debug("无法解析的缓存格式, key={}", key);
+            return null;
+        }
+        return cached;
+    }
+
+    private void setRaw(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(key.getBytes(StandardCharsets.UTF_8), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private void publishInvalidation(String key) {
+        // 本节点立即清除，其他节点通过发布订阅清除
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private static double ratio(long hits, long total) {
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
         return BooleanUtil.isTrue(flag);
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器。新的实现注册为spring bean即可，通过 hmdp.cache.codec 选择写入时使用的编码器，
+ * 读取时按值的头部选择编码器，见 {@link CacheSerializer}。
+ * <p>
+ * 修改编码格式时需要提高 {@link #version()}，并且能够继续解码旧版本的数据；
+ * 新增编码器或格式版本时，先让所有节点都能读取，再切换写入的编码器，即可滚动升级。
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码器名称，对应 hmdp.cache.codec 配置
+     */
+    String name();
+
+    /**
+     * 编码器id，写入值的头部，不同编码器不能重复，0为不带头部的json格式
+     */
+    byte id();
+
+    /**
+     * 写入时使用的格式版本
+     */
+    byte version();
+
+    byte[] encode(Object value);
+
+    /**
+     * @param bytes   缓存值
+     * @param offset  编码数据在bytes中的起始位置，之前为头部
+     * @param version 写入时的格式版本，不大于 {@link #version()}
+     * @param type    目标类型
+     */
+    <T> T decode(byte[] bytes, int offset, byte version, Class<T> type);
+}
@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * 缓存值的序列化，按 hmdp.cache.codec 选择写入的编码器。
+ * <p>
+ * json编码不带头部，与升级前的格式相同；其他编码器写入 [魔数][编码器id][格式版本][标记] 4字节头部，
+ * 标记带有逻辑过期时，头部之后是8字节的过期时间。读取时按头部选择编码器，没有魔数的值按json读取。
+ * 本节点不认识的编码器或更新的格式版本视为未命中，由调用方重建缓存。
+ */
+@Slf4j
+@Component
+public class CacheSerializer {
+
+    // 不是合法的utf-8首字节，不会与json冲突
+    private static final byte MAGIC = (byte) 0xFE;
+    private static final int HEADER_LENGTH = 4;
+    private static final byte FLAG_LOGICAL_EXPIRE = 1;
+
+    private final CacheCodec[] codecs = new CacheCodec[256];
+
+    private final CacheCodec writer;
+
+    public CacheSerializer(List<CacheCodec> codecList, @Value("${hmdp.cache.codec:json}") String writerName) {
+        CacheCodec selected = null;
+        for (CacheCodec codec : codecList) {
+            int id = codec.id() & 0xFF;
+            if (codecs[id] != null) {
+                throw new IllegalStateException("缓存编码器id重复: " + codec.name() + ", " + codecs[id].name());
+            }
+            codecs[id] = codec;
+            if (codec.name().equals(writerName)) {
+                selected = codec;
+            }
+        }
+        if (selected == null) {
+            throw new IllegalStateException("未知的缓存编码器: " + writerName);
+        }
+        this.writer = selected;
+        log.info("缓存写入编码器: {}", writerName);
+    }
+
+    public byte[] serialize(Object value) {
+        if (writer.id() == JsonCacheCodec.ID) {
+            return writer.encode(value);
+        }
+        byte[] body = writer.encode(value);
+        byte[] bytes = new byte[HEADER_LENGTH + body.length];
+        writeHeader(bytes, (byte) 0);
+        System.arraycopy(body, 0, bytes, HEADER_LENGTH, body.length);
+        return bytes;
+    }
+
+    /**
+     * 序列化带逻辑过期时间的值，json格式与 {@link RedisData} 相同
+     */
+    public byte[] serialize(Object value, LocalDateTime expireTime) {
+        if (writer.id() == JsonCacheCodec.ID) {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            return writer.encode(redisData);
+        }
+        byte[] body = writer.encode(value);
+        byte[] bytes = new byte[HEADER_LENGTH + 8 + body.length];
+        writeHeader(bytes, FLAG_LOGICAL_EXPIRE);
+        long expireMillis = expireTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+        for (int i = 0; i < 8; i++) {
+            bytes[HEADER_LENGTH + i] = (byte) (expireMillis >>> (56 - 8 * i));
+        }
+        System.arraycopy(body, 0, bytes, HEADER_LENGTH + 8, body.length);
+        return bytes;
+    }
+
+    /**
+     * 本节点能否读取该值，不认识的编码器或更新的格式版本返回false
+     */
+    public boolean isReadable(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != MAGIC) {
+            return true;
+        }
+        if (bytes.length < HEADER_LENGTH) {
+            return false;
+        }
+        CacheCodec codec = codecs[bytes[1] & 0xFF];
+        return codec != null && bytes[2] <= codec.version();
+    }
+
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        if (bytes[0] != MAGIC) {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        }
+        int offset = (bytes[3] & FLAG_LOGICAL_EXPIRE) != 0 ? HEADER_LENGTH + 8 : HEADER_LENGTH;
+        return codecs[bytes[1] & 0xFF].decode(bytes, offset, bytes[2], type);
+    }
+
+    /**
+     * 反序列化带逻辑过期时间的值，返回的data已经是type类型
+     */
+    public <T> RedisData deserializeWithExpire(byte[] bytes, Class<T> type) {
+        RedisData redisData = new RedisData();
+        if (bytes[0] != MAGIC) {
+            // json只解析一次，data直接转换为目标类型
+            JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+            redisData.setData(json.getJSONObject("data").toBean(type));
+            return redisData;
+        }
+        if ((bytes[3] & FLAG_LOGICAL_EXPIRE) == 0) {
+            throw new IllegalStateException("缓存值没有逻辑过期时间");
+        }
+        long expireMillis = 0;
+        for (int i = 0; i < 8; i++) {
+            expireMillis = (expireMillis << 8) | (bytes[HEADER_LENGTH + i] & 0xFF);
+        }
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneOffset.UTC));
+        redisData.setData(codecs[bytes[1] & 0xFF].decode(bytes, HEADER_LENGTH + 8, bytes[2], type));
+        return redisData;
+    }
+
+    private void writeHeader(byte[] bytes, byte flags) {
+        bytes[0] = MAGIC;
+        bytes[1] = writer.id();
+        bytes[2] = writer.version();
+        bytes[3] = flags;
+    }
+}
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * hutool json编码，与升级前写入的格式相同，写入时不带头部，所有版本的节点都能读取
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final byte ID = 0;
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte version() {
+        return 1;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, byte version, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8), type);
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单消息队列的积压监控和过载保护。定期采样所有订单stream的未确认消息数、最早未处理订单的等待时间和队列长度，
+ * 超过阈值时秒杀请求快速失败、排队暂停放行，直到各项指标都回落到阈值的一定比例以下才恢复，避免在阈值附近反复切换。
+ * <p>
+ * 闲置的消费者(通常是宕机的节点)持有的未确认消息单独统计，不计入未确认消息数和等待时间，
+ * 这些消息由 OrderStreamMaintainer 转移给存活的消费者后重新计入，宕机节点不会让所有节点一起限流。
+ */
+@Slf4j
+@Component
+public class OrderLagMonitor {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Value("${hmdp.seckill.consumer.group:g1}")
+    private String groupName;
+
+    // 是否开启过载保护，关闭时只采样指标
+    @Value("${hmdp.seckill.backpressure.enabled:false}")
+    private boolean enabled;
+
+    // 未确认消息数阈值
+    @Value("${hmdp.seckill.backpressure.max-pending:20000}")
+    private long maxPending;
+
+    // 最早未处理订单的等待时间阈值(毫秒)
+    @Value("${hmdp.seckill.backpressure.max-lag:10000}")
+    private long maxLag;
+
+    // 队列长度阈值
+    @Value("${hmdp.seckill.backpressure.max-length:500000}")
+    private long maxLength;
+
+    // 指标回落到阈值的该比例以下才恢复
+    @Value("${hmdp.seckill.backpressure.recover-ratio:0.5}")
+    private double recoverRatio;
+
+    // 消费者闲置超过该时间(毫秒)时，它的未确认消息不计入积压，需大于消费者阻塞读取和处理一批订单的时间
+    @Value("${hmdp.seckill.backpressure.consumer-idle:10000}")
+    private long consumerIdle;
+
+    private volatile long pendingCount;
+    private volatile long stalePendingCount;
+    private volatile long lagMillis;
+    private volatile long streamLength;
+    private volatile boolean shedding;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.backpressure.check-interval:1000}")
+    public void sample() {
+        try {
+            long pending = 0;
+            long stale = 0;
+            long length = 0;
+            long oldest = Long.MAX_VALUE;
+            for (String streamKey : seckillKeys.orderStreamKeys()) {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+                    continue;
+                }
+                // 1.队列长度，包括已确认但还没有被裁剪的消息
+                Long size = stringRedisTemplate.opsForStream().size(streamKey);
+                length += size == null ? 0 : size;
+                StreamInfo.XInfoGroup group = findGroup(streamKey);
+                if (group == null) {
+                    // 还没有消费者组，所有消息都还没有投递
+                    oldest = Math.min(oldest, firstAfter(streamKey, "0-0"));
+                    continue;
+                }
+                // 2.存活的消费者的未确认消息数和其中最早的消息，闲置的消费者单独统计
+                StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(streamKey, groupName);
+                for (int i = 0; i < consumers.size(); i++) {
+                    StreamInfo.XInfoConsumer consumer = consumers.get(i);
+                    if (consumer.pendingCount() == 0) {
+                        continue;
+                    }
+                    if (consumer.idleTimeMs() >= consumerIdle) {
+                        stale += consumer.pendingCount();
+                        continue;
+                    }
+                    pending += consumer.pendingCount();
+                    PendingMessages first = stringRedisTemplate.opsForStream().pending(streamKey,
+                            Consumer.from(groupName, consumer.consumerName()), Range.unbounded(), 1);
+                    if (!first.isEmpty()) {
+                        oldest = Math.min(oldest, first.get(0).getId().getTimestamp());
+                    }
+                }
+                // 3.还没有投递给消费者的第一条消息
+                oldest = Math.min(oldest, firstAfter(streamKey, group.lastDeliveredId()));
+            }
+            pendingCount = pending;
+            stalePendingCount = stale;
+            streamLength = length;
+            lagMillis = oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+            updateState();
+        } catch (Exception e) {
+            log.error("采样订单队列积压失败", e);
+        }
+    }
+
+    private StreamInfo.XInfoGroup findGroup(String streamKey) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        for (int i = 0; i < groups.size(); i++) {
+            if (groupName.equals(groups.get(i).groupName())) {
+                return groups.get(i);
+            }
+        }
+        return null;
+    }
+
+    // id之后的第一条消息的时间，需要redis 6.2+
+    private long firstAfter(String streamKey, String id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(streamKey,
+                Range.rightUnbounded(Range.Bound.exclusive(id)), Limit.limit().count(1));
+        if (records != null && !records.isEmpty()) {
+            return records.get(0).getId().getTimestamp();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void updateState() {
+        if (!enabled) {
+            shedding = false;
+            return;
+        }
+        if (!shedding && (pendingCount > maxPending || lagMillis > maxLag || streamLength > maxLength)) {
+            shedding = true;
+            log.warn("订单队列积压，开始限制秒杀请求: 未确认{} 延迟{}ms 长度{}", pendingCount, lagMillis, streamLength);
+        } else if (shedding && pendingCount <= maxPending * recoverRatio && lagMillis <= maxLag * recoverRatio
+                && streamLength <= maxLength * recoverRatio) {
+            shedding = false;
+            log.info("订单队列积压已恢复: 未确认{} 延迟{}ms 长度{}", pendingCount, lagMillis, streamLength);
+        }
+    }
+
+    public boolean isShedding() {
+        return shedding;
+    }
+
+    public long getPendingCount() {
+        return pendingCount;
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public long getStreamLength() {
+        return streamLength;
+    }
+
+    public long getStalePendingCount() {
+        return stalePendingCount;
+    }
+
+    /**
+     * 最近一次采样的积压指标
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("shedding", shedding);
+        stats.put("pendingCount", pendingCount);
+        stats.put("stalePendingCount", stalePendingCount);
+        stats.put("lagMillis", lagMillis);
+        stats.put("streamLength", streamLength);
+        return stats;
+    }
+}
@@ -0,0 +1,255 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+
+/**
+ * 订单消息队列的后台维护任务
+ */
+@Slf4j
+@Component
+public class OrderStreamMaintainer {
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    // 死信队列保留的最大消息数
+    @Value("${hmdp.seckill.stream.dlq-max-len:10000}")
+    private long dlqMaxLen;
+
+    // 消费者组名称
+    @Value("${hmdp.seckill.consumer.group:g1}")
+    private String groupName;
+
+    // 集群布局下秒杀结束超过该时间(毫秒)并且已经消费完的分片stream会被删除
+    @Value("${hmdp.seckill.stream.retire-after:3600000}")
+    private long retireAfter;
+
+    // 消费者闲置超过该时间(毫秒)视为已宕机，其未确认的消息会转移给存活的消费者
+    @Value("${hmdp.seckill.stream.reclaim-idle:60000}")
+    private long reclaimIdle;
+
+    // 消费者闲置超过该时间(毫秒)且没有未确认消息时，从消费者组中删除
+    @Value("${hmdp.seckill.stream.consumer-expire:600000}")
+    private long consumerExpire;
+
+    // 每个宕机消费者每次最多转移的消息数
+    @Value("${hmdp.seckill.stream.reclaim-batch:100}")
+    private long reclaimBatch;
+
+    // 累计转移的消息数
+    private final AtomicLong reclaimedTotal = new AtomicLong();
+
+    // 最近一次转移时，消息被搁置的最长时间(毫秒)，即故障恢复耗时
+    private volatile long lastRecoveryMillis;
+
+    /**
+     * 裁剪已经被所有消费者组确认的消息，避免消息队列无限增长。
+     * 只删除比每个组的最小未确认id和last-delivered-id都小的消息，不会丢失未处理的订单。
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.trim-interval:60000}")
+    public void trimOrderStream() {
+        try {
+            for (String streamKey : seckillKeys.orderStreamKeys()) {
+                // 1.计算所有消费者组仍可能用到的最小id
+                RecordId minId = safeMinId(streamKey);
+                if (minId != null) {
+                    // 2.XTRIM MINID ~ minId，需要redis 6.2+
+                    stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(streamKey), minId.getValue());
+                }
+                // 2.1 集群布局下删除已经结束并消费完的分片stream
+                retireIfFinished(streamKey);
+            }
+            // 3.死信队列只保留最近的消息
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_DLQ_KEY))) {
+                stringRedisTemplate.opsForStream().trim(SECKILL_ORDER_DLQ_KEY, dlqMaxLen, true);
+            }
+        } catch (Exception e) {
+            log.error("裁剪订单消息队列失败", e);
+        }
+    }
+
+    /**
+     * 把宕机消费者pending-list中的消息转移给存活的消费者，并清理过期的消费者。
+     * 消息最长搁置时间约为 reclaim-idle + reclaim-interval + 消费者的重试退避时间。
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.reclaim-interval:10000}")
+    public void reclaimPendingOrders() {
+        for (String streamKey : seckillKeys.orderStreamKeys()) {
+            try {
+                reclaimPendingOrders(streamKey);
+            } catch (Exception e) {
+                log.error("转移宕机消费者的订单消息失败: {}", streamKey, e);
+            }
+        }
+    }
+
+    private void reclaimPendingOrders(String streamKey) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return;
+        }
+        // 1.按闲置时间区分存活和宕机的消费者，存活的消费者每次阻塞读取都会刷新闲置时间
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(streamKey, groupName);
+        List<String> live = new ArrayList<>();
+        List<StreamInfo.XInfoConsumer> dead = new ArrayList<>();
+        for (int i = 0; i < consumers.size(); i++) {
+            StreamInfo.XInfoConsumer consumer = consumers.get(i);
+            if (consumer.idleTimeMs() < reclaimIdle) {
+                live.add(consumer.consumerName());
+            } else {
+                dead.add(consumer);
+            }
+        }
+        if (live.isEmpty()) {
+            // 没有存活的消费者可以接手
+            return;
+        }
+        // 2.宕机消费者的消息轮流分给存活的消费者，由其定期检查pending-list时处理
+        int next = 0;
+        for (StreamInfo.XInfoConsumer consumer : dead) {
+            if (consumer.pendingCount() > 0) {
+                reclaim(streamKey, consumer.consumerName(), live.get(next++ % live.size()));
+            } else if (consumer.idleTimeMs() >= consumerExpire) {
+                // 3.删除长时间不活跃且没有未确认消息的消费者
+                stringRedisTemplate.opsForStream().deleteConsumer(streamKey,
+                        Consumer.from(groupName, consumer.consumerName()));
+                log.info("删除过期的订单消费者{}", consumer.consumerName());
+            }
+        }
+    }
+
+    private void reclaim(String streamKey, String deadConsumer, String target) {
+        // 1.查询宕机消费者的未确认消息
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey,
+                Consumer.from(groupName, deadConsumer), Range.unbounded(), reclaimBatch);
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<RecordId> ids = new ArrayList<>(pending.size());
+        long maxIdle = 0;
+        for (PendingMessage message : pending) {
+            ids.add(message.getId());
+            maxIdle = Math.max(maxIdle, message.getElapsedTimeSinceLastDelivery().toMillis());
+        }
+        // 2.XCLAIM JUSTID转移给存活的消费者，不增加投递次数；min-idle保证不会抢走刚被处理的消息
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(bytes(streamKey), groupName, target,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(reclaimIdle)).ids(ids)));
+        int count = claimed == null ? 0 : claimed.size();
+        reclaimedTotal.addAndGet(count);
+        lastRecoveryMillis = maxIdle;
+        log.warn("消费者{}已宕机，{}的{}条订单消息转移给{}，最长搁置{}ms", deadConsumer, streamKey, count, target, maxIdle);
+    }
+
+    /**
+     * stream中的消息是否都已经投递给消费者并被确认
+     */
+    public boolean isDrained(String streamKey) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return true;
+        }
+        String lastId = stringRedisTemplate.opsForStream().info(streamKey).lastGeneratedId();
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        if (groups.isEmpty()) {
+            // 还没有消费者组，只有空stream算消费完
+            return stringRedisTemplate.opsForStream().size(streamKey) == 0;
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if (group.pendingCount() > 0 || !lastId.equals(group.lastDeliveredId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void retireIfFinished(String streamKey) {
+        String voucherKey = seckillKeys.voucherKeyOfStream(streamKey);
+        if (voucherKey == null) {
+            return;
+        }
+        Object endTime = stringRedisTemplate.opsForHash().get(voucherKey, "endTime");
+        if (endTime != null && System.currentTimeMillis() < Long.parseLong(endTime.toString()) + retireAfter) {
+            return;
+        }
+        // 秒杀结束后不会再有新订单，先注销再删除，消费者刷新列表后不再读取
+        if (isDrained(streamKey)) {
+            seckillKeys.unregisterStream(streamKey);
+            stringRedisTemplate.delete(streamKey);
+            log.info("秒杀已结束，删除订单stream {}", streamKey);
+        }
+    }
+
+    public long getReclaimedTotal() {
+        return reclaimedTotal.get();
+    }
+
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    private RecordId safeMinId(String streamKey) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            return null;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(streamKey);
+        // 没有消费者组时，消息都还没有被消费，不能裁剪
+        if (groups.isEmpty()) {
+            return null;
+        }
+        RecordId minId = null;
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            // 1.last-delivered-id之后的消息还未投递
+            RecordId candidate = RecordId.of(group.lastDeliveredId());
+            // 2.pending-list中的消息还未确认
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, group.groupName());
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                candidate = min(candidate, summary.minRecordId());
+            }
+            minId = minId == null ? candidate : min(minId, candidate);
+        }
+        return minId;
+    }
+
+    private static RecordId min(RecordId a, RecordId b) {
+        if (a.getTimestamp() != b.getTimestamp()) {
+            return a.getTimestamp() < b.getTimestamp() ? a : b;
+        }
+        return a.getSequence() <= b.getSequence() ? a : b;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 超时未支付订单的取消。订单落库后以超时时间为score加入延迟队列(sorted set)，
+ * 定时任务批量取出到期的订单，数据库中取消订单并归还库存后，再归还redis库存并移除下单用户，用户可以重新购买。
+ */
+@Slf4j
+@Component
+public class OrderTimeoutCanceller {
+
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+
+    static {
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    // 订单状态 1：未支付；4：已取消
+    private static final int UNPAID = 1;
+    private static final int CANCELLED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillEventPusher seckillEventPusher;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private StockLeaseManager stockLeaseManager;
+
+    // 支付超时时间(秒)
+    @Value("${hmdp.seckill.cancel.pay-timeout:900}")
+    private long payTimeout;
+
+    // 每批取出的到期订单数
+    @Value("${hmdp.seckill.cancel.batch-size:100}")
+    private int batchSize;
+
+    // 每轮最多处理的批数，剩余的留到下一轮
+    @Value("${hmdp.seckill.cancel.max-batches:50}")
+    private int maxBatches;
+
+    @Value("${hmdp.seckill.cancel.interval:1000}")
+    private long interval;
+
+    /**
+     * 订单加入延迟队列，重复投递的订单不会推迟超时时间
+     */
+    public void schedule(List<VoucherOrder> voucherOrders) {
+        double deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(payTimeout);
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            tuples.add(new DefaultTypedTuple<>(voucherOrder.getId().toString(), deadline));
+        }
+        stringRedisTemplate.opsForZSet().addIfAbsent(SECKILL_ORDER_TIMEOUT_KEY, tuples);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.cancel.interval:1000}")
+    public void cancelTimeoutOrders() {
+        try {
+            // 1.每轮只有一个节点处理
+            Boolean leader = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_CANCEL_LOCK, "1", interval, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(leader)) {
+                return;
+            }
+            for (int i = 0; i < maxBatches; i++) {
+                // 2.取出一批到期的订单
+                Set<String> ids = stringRedisTemplate.opsForZSet()
+                        .rangeByScore(SECKILL_ORDER_TIMEOUT_KEY, 0, System.currentTimeMillis(), 0, batchSize);
+                if (ids == null || ids.isEmpty()) {
+                    return;
+                }
+                // 3.处理失败的订单留在队列中，下一轮重试
+                if (!cancel(ids) || ids.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("取消超时订单失败", e);
+        }
+    }
+
+    private boolean cancel(Set<String> ids) {
+        // 1.批量查询订单
+        Map<Long, VoucherOrder> orders = voucherOrderService.listByIds(ids).stream()
+                .collect(Collectors.toMap(VoucherOrder::getId, Function.identity()));
+        List<String> done = new ArrayList<>(ids.size());
+        List<VoucherOrder> cancelled = new ArrayList<>();
+        boolean success = true;
+        for (String id : ids) {
+            VoucherOrder voucherOrder = orders.get(Long.valueOf(id));
+            try {
+                // 2.未支付的订单在数据库中取消并归还库存，已取消说明上次归还redis库存失败
+                if (voucherOrder != null && (Integer.valueOf(CANCELLED).equals(voucherOrder.getStatus())
+                        || Integer.valueOf(UNPAID).equals(voucherOrder.getStatus())
+                        && voucherOrderService.cancelUnpaidOrder(voucherOrder))) {
+                    returnStock(voucherOrder);
+                    cancelled.add(voucherOrder);
+                }
+                // 3.已支付或不存在的订单直接出队
+                done.add(id);
+            } catch (Exception e) {
+                log.error("取消订单{}失败", id, e);
+                success = false;
+            }
+        }
+        if (!done.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_TIMEOUT_KEY, done.toArray());
+        }
+        if (!cancelled.isEmpty()) {
+            // 4.有库存归还的优惠券清除售罄标记，租约模式的优惠券移除各节点本地的下单用户，并通知等待结果的用户
+            cancelled.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutRegistry::clearSoldOut);
+            stockLeaseManager.releaseBuyers(cancelled);
+            seckillEventPusher.publishOrders(cancelled, SeckillOrderStatus.CANCELLED);
+            log.info("已取消{}个超时未支付订单", cancelled.size());
+        }
+        return success;
+    }
+
+    private void returnStock(VoucherOrder voucherOrder) {
+        Long voucherId = voucherOrder.getVoucherId();
+        // 用户所属分片的库存、下单用户和订单状态在同一个slot
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+        int shards = StrUtil.isBlank(value) ? 1 : Integer.parseInt(value);
+        int home = Math.floorMod(voucherOrder.getUserId().hashCode(), shards);
+        List<String> keys = Arrays.asList(seckillKeys.stockKey(voucherId, home, shards),
+                seckillKeys.orderKey(voucherId, home, shards), seckillKeys.statusKey(voucherId, home, shards));
+        stringRedisTemplate.execute(CANCEL_SCRIPT, keys,
+                voucherOrder.getUserId().toString(), voucherOrder.getId().toString());
+    }
+}
@@ -13,8 +13,35 @@ public class RedisConstants {
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    // 缓存失效通知，消息内容为失效的key，各节点收到后清除本地缓存
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    // 布隆过滤器新增id的通知，消息内容为 过滤器名称:id，各节点收到后更新本地副本
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final String SECKILL_STOCK_SHARDS_KEY = "seckill:stock:shards:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_STREAMS_KEY = "seckill:streams";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_EVENT_CHANNEL = "seckill:events";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_LIMIT_CONFIG_KEY = "seckill:limit:config:";
+    public static final String SECKILL_QUEUE_ACTIVE_KEY = "seckill:queue:active";
+    public static final String SECKILL_QUEUE_ADMIT_LOCK = "lock:seckill:queue:admit";
+    public static final String SECKILL_RECONCILE_LOCK = "lock:seckill:reconcile";
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "seckill:timeout";
+    public static final String SECKILL_CANCEL_LOCK = "lock:seckill:cancel";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_SETTLED_KEY = "seckill:lease:settled:";
+    public static final String SECKILL_LEASE_REMAINING_KEY = "seckill:lease:remaining:";
+    public static final String SECKILL_LEASE_NODE_KEY = "seckill:lease:node:";
+    public static final String SECKILL_LEASE_LOCK = "lock:seckill:lease";
+    public static final String SECKILL_LEASE_RELEASE_CHANNEL = "seckill:lease:release";
+    public static final String SECKILL_ORDER_DRAINED_KEY = "seckill:drained";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -23,4 +50,84 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TYPE_TTL = 30L;
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";
 
+    // 缓存重建的互斥锁，由缓存key派生，不同类型的缓存使用不同的锁
+    public static String cacheLockKey(String cacheKey) {
+        return "lock:" + cacheKey;
+    }
+
+    // 库存租约和已结算的租约订单使用{voucherId}作为hash tag，结算脚本的key落在同一个slot
+    public static String leaseKey(Long voucherId) {
+        return SECKILL_LEASE_KEY + "{" + voucherId + "}";
+    }
+
+    public static String leaseSettledKey(Long voucherId) {
+        return SECKILL_LEASE_SETTLED_KEY + "{" + voucherId + "}";
+    }
+
+    public static String leaseRemainingKey(Long voucherId) {
+        return SECKILL_LEASE_REMAINING_KEY + "{" + voucherId + "}";
+    }
+
+    // 排队相关key使用{voucherId}作为hash tag，保证排队脚本的key落在同一个slot
+    public static String queueKey(Long voucherId) {
+        return "seckill:queue:{" + voucherId + "}";
+    }
+
+    public static String queueSeqKey(Long voucherId) {
+        return "seckill:queue:seq:{" + voucherId + "}";
+    }
+
+    public static String queueAdmittedKey(Long voucherId) {
+        return "seckill:queue:admitted:{" + voucherId + "}";
+    }
+
+    // 分片库存key，{voucherId:shard}作为hash tag，同一分片的库存、已购用户、秒杀信息和订单状态key落在同一个slot
+    public static String stockShardKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderShardKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String voucherShardKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String statusShardKey(Long voucherId, int shard) {
+        return SECKILL_STATUS_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    // 订单stream分区，{partition}作为hash tag，不同分区分布到不同slot；只有一个分区时沿用原来的key
+    public static String orderStreamKey(int partition, int partitions) {
+        return partitions > 1 ? SECKILL_ORDER_STREAM_KEY + ":{" + partition + "}" : SECKILL_ORDER_STREAM_KEY;
+    }
+
+    // 同一张优惠券的订单总是进入同一个分区
+    public static String orderStreamKey(Long voucherId, int partitions) {
+        return orderStreamKey(Math.floorMod(voucherId.hashCode(), partitions), partitions);
+    }
+
+    // 库存分片专用的订单stream，与该分片的库存key使用相同的hash tag
+    public static String orderShardStreamKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_STREAM_KEY + ":{" + voucherId + ":" + shard + "}";
+    }
+
+    // 布隆过滤器相关key使用{name}作为hash tag，构建时可以用BITOP合并
+    public static String bloomKey(String name) {
+        return "bloom:{" + name + "}";
+    }
+
+    public static String bloomBuildKey(String name) {
+        return "bloom:{" + name + "}:build";
+    }
+
+    public static String bloomMetaKey(String name) {
+        return "bloom:{" + name + "}:meta";
+    }
+
+    public static String bloomLockKey(String name) {
+        return "bloom:{" + name + "}:lock";
+    }
+
 }
@@ -1,12 +1,21 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class RedisIdWork {
@@ -16,28 +25,124 @@ public class RedisIdWork {
      */
     private static final long BEGIN_TIME = 1640995200;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400;
 
     private static final String PREFIX = "icr:";
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // 号段预取线程
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(
+            ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 每次从redis申请的号段长度，为1时等同于每次INCR
+    @Value("${hmdp.id.segment-step:1000}")
+    private long step;
+
+    // 当前号段剩余比例低于该值时，异步预取下一个号段
+    @Value("${hmdp.id.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    // keyPrefix -> 双号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
 
     public long nextId(String keyPrefix) {
         // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIME;
 
-        // 2.生成序列号
-        // 2.1 获取当前日期，精确到天
-        String data = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-
-        Long count = stringRedisTemplate.opsForValue().increment(PREFIX + keyPrefix + ":" + data);
+        // 2.生成序列号，序列号按天从号段中分配
+        long day = nowSecond / SECONDS_PER_DAY;
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day);
 
         // 3.拼接并返回
         return timeStamp << COUNT_BITS | count;
     }
 
+    /**
+     * 从redis申请一个号段，INCRBY保证不同节点的号段不重叠
+     */
+    private Segment loadSegment(String keyPrefix, long day) {
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment(PREFIX + keyPrefix + ":" + date, step);
+        if (end == null) {
+            throw new IllegalStateException("申请id号段失败: " + keyPrefix);
+        }
+        return new Segment(day, end - step + 1, end);
+    }
+
+    private static class Segment {
+        // 号段所属的日期，序列号按天重置，跨天的号段不能继续使用
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+
+        private Segment(long day, long min, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        // 预取中的下一个号段
+        private volatile CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.max) {
+                        // 剩余不足时提前预取，切换号段时不用等待redis
+                        if (segment.max - value < step * prefetchRatio && next == null) {
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                // 号段用完或者已经跨天，切换到下一个号段
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void prefetch(long day) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> loadSegment(keyPrefix, day), SEGMENT_LOADER);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            // 其他线程已经切换过了
+            if (current != exhausted) {
+                return;
+            }
+            CompletableFuture<Segment> future = next;
+            next = null;
+            Segment segment = null;
+            if (future != null) {
+                try {
+                    segment = future.join();
+                } catch (Exception ignored) {
+                    // 预取失败，下面同步申请
+                }
+            }
+            if (segment == null || segment.day != day) {
+                segment = loadSegment(keyPrefix, day);
+            }
+            current = segment;
+        }
+    }
+
 }
@@ -0,0 +1,232 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀结果和库存的SSE推送，替代客户端轮询订单状态和库存。
+ * 订单结果由消费线程发布到redis频道，持有该用户连接的节点负责推送；
+ * 库存由每个节点按固定间隔读取，只在变化时推送给本节点订阅了该优惠券的连接。
+ * <p>
+ * 订单事件带有状态的version，发布订阅的监听线程池可能打乱同一订单的事件，本节点丢弃version不大于已推送的事件，
+ * 客户端重连后也可以按version判断先后。
+ */
+@Slf4j
+@Component
+public class SeckillEventPusher implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private StockLeaseManager stockLeaseManager;
+
+    // 连接超时时间(毫秒)，超时后客户端自动重连
+    @Value("${hmdp.seckill.push.timeout:300000}")
+    private long timeout;
+
+    // userId -> 该用户的连接
+    private final Map<Long, Set<SseEmitter>> userEmitters = new ConcurrentHashMap<>();
+    // voucherId -> 订阅该优惠券库存的连接
+    private final Map<Long, Set<SseEmitter>> voucherEmitters = new ConcurrentHashMap<>();
+    // voucherId -> 上一次推送的库存
+    private final Map<Long, Long> lastStock = new ConcurrentHashMap<>();
+    // orderId -> 已推送的最新状态version
+    private final LRUCache<String, Integer> lastVersion = CacheUtil.newLRUCache(100000, TimeUnit.MINUTES.toMillis(30));
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_EVENT_CHANNEL));
+    }
+
+    public SseEmitter subscribe(Long voucherId, Long userId) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        userEmitters.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(emitter);
+        voucherEmitters.computeIfAbsent(voucherId, k -> ConcurrentHashMap.newKeySet()).add(emitter);
+        Runnable remove = () -> {
+            removeEmitter(userEmitters, userId, emitter);
+            removeEmitter(voucherEmitters, voucherId, emitter);
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        // 新连接先推送一次当前库存
+        Long stock = lastStock.get(voucherId);
+        if (stock != null) {
+            send(emitter, "stock", stockEvent(voucherId, stock));
+        }
+        return emitter;
+    }
+
+    /**
+     * 发布订单处理结果，一批订单只发一条消息
+     */
+    public void publishOrders(List<VoucherOrder> voucherOrders, String status) {
+        JSONArray events = new JSONArray();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            events.add(new JSONObject()
+                    .set("userId", voucherOrder.getUserId())
+                    .set("voucherId", voucherOrder.getVoucherId())
+                    .set("orderId", voucherOrder.getId().toString())
+                    .set("status", status)
+                    .set("version", SeckillOrderStatus.version(status)));
+        }
+        stringRedisTemplate.convertAndSend(SECKILL_EVENT_CHANNEL, events.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (userEmitters.isEmpty()) {
+            return;
+        }
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            for (JSONObject event : JSONUtil.parseArray(body).jsonIter()) {
+                Set<SseEmitter> emitters = userEmitters.get(event.getLong("userId"));
+                if (emitters == null) {
+                    continue;
+                }
+                String orderId = event.getStr("orderId");
+                int version = event.getInt("version", SeckillOrderStatus.version(event.getStr("status")));
+                if (!advance(orderId, version)) {
+                    // 更新的状态已经推送过，丢弃乱序到达的旧状态
+                    continue;
+                }
+                Map<String, Object> data = new HashMap<>(4);
+                data.put("voucherId", event.getLong("voucherId"));
+                data.put("orderId", orderId);
+                data.put("status", event.getStr("status"));
+                data.put("version", version);
+                for (SseEmitter emitter : emitters) {
+                    send(emitter, "order", data);
+                }
+            }
+        } catch (Exception e) {
+            log.error("无法解析秒杀事件: {}", body, e);
+        }
+    }
+
+    private boolean advance(String orderId, int version) {
+        synchronized (lastVersion) {
+            Integer last = lastVersion.get(orderId, false);
+            if (last != null && last >= version) {
+                return false;
+            }
+            lastVersion.put(orderId, version);
+            return true;
+        }
+    }
+
+    /**
+     * 定时读取有订阅的优惠券库存，变化时才推送，推送频率不超过该间隔
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.push.stock-interval:1000}")
+    public void pushStock() {
+        for (Map.Entry<Long, Set<SseEmitter>> entry : voucherEmitters.entrySet()) {
+            Long voucherId = entry.getKey();
+            Long stock = readStock(voucherId);
+            if (stock == null || stock.equals(lastStock.put(voucherId, stock))) {
+                continue;
+            }
+            Map<String, Object> data = stockEvent(voucherId, stock);
+            for (SseEmitter emitter : entry.getValue()) {
+                send(emitter, "stock", data);
+            }
+        }
+        lastStock.keySet().retainAll(voucherEmitters.keySet());
+    }
+
+    private Long readStock(Long voucherId) {
+        try {
+            // 1.分片库存需要汇总所有分片
+            String shardsValue = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+            int shards = StrUtil.isBlank(shardsValue) ? 1 : Integer.parseInt(shardsValue);
+            List<String> keys = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++) {
+                keys.add(seckillKeys.stockKey(voucherId, i, shards));
+            }
+            // 2.读取并求和，库存key不存在说明不是秒杀券
+            List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+            if (values == null) {
+                return null;
+            }
+            long stock = 0;
+            boolean found = false;
+            for (String value : values) {
+                if (StrUtil.isNotBlank(value)) {
+                    stock += Long.parseLong(value);
+                    found = true;
+                }
+            }
+            if (!found) {
+                return null;
+            }
+            // 3.租约模式下各节点租用后还没有卖出的库存也可以购买
+            if (stockLeaseManager.isEnabled(voucherId)) {
+                stock = Math.max(stock, 0) + stockLeaseManager.getLeasedStock(voucherId);
+            }
+            return Math.max(stock, 0);
+        } catch (Exception e) {
+            log.error("读取优惠券{}库存失败", voucherId, e);
+            return null;
+        }
+    }
+
+    private static Map<String, Object> stockEvent(Long voucherId, Long stock) {
+        Map<String, Object> data = new HashMap<>(2);
+        data.put("voucherId", voucherId);
+        data.put("stock", stock);
+        return data;
+    }
+
+    private static void send(SseEmitter emitter, String name, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data));
+        } catch (IOException | IllegalStateException e) {
+            // 连接已断开，由回调移除
+            emitter.completeWithError(e);
+        }
+    }
+
+    private static void removeEmitter(Map<Long, Set<SseEmitter>> emitters, Long id, SseEmitter emitter) {
+        emitters.computeIfPresent(id, (k, set) -> {
+            set.remove(emitter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的redis key布局
+ * <p>
+ * 默认沿用原有的key：不分片的优惠券使用 seckill:stock:{voucherId} 等普通key，分片库存使用 seckill:stock:{voucherId:shard}，
+ * 订单进入 stream.orders，配置了多个分区时按优惠券进入 stream.orders:{partition}。
+ * <p>
+ * 开启 hmdp.seckill.cluster 后，每个库存分片(不分片的优惠券视为分片0)的库存、已购用户、秒杀信息、订单状态以及接收它订单的stream
+ * 都以 {voucherId:shard} 作为hash tag，秒杀脚本只访问一个slot，不同优惠券、不同分片分布到不同slot。
+ * 这些stream登记在 seckill:streams 中，消费者、裁剪和监控任务按登记表遍历。两种布局的key不通用，只能在没有进行中的秒杀时切换。
+ */
+@Component
+public class SeckillKeys {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisProperties redisProperties;
+
+    // 是否使用Redis Cluster的key布局
+    @Value("${hmdp.seckill.cluster:false}")
+    private boolean cluster;
+
+    // 订单stream的分区数，只在默认布局下使用
+    @Value("${hmdp.seckill.stream.partitions:1}")
+    private int partitions;
+
+    @PostConstruct
+    private void init() {
+        if (partitions < 1) {
+            throw new IllegalStateException("hmdp.seckill.stream.partitions 不能小于1");
+        }
+        RedisProperties.Cluster nodes = redisProperties.getCluster();
+        if (!cluster && nodes != null && nodes.getNodes() != null && !nodes.getNodes().isEmpty()) {
+            // 默认布局的秒杀脚本会访问多个slot，在Redis Cluster中执行失败
+            throw new IllegalStateException("使用Redis Cluster时需要开启 hmdp.seckill.cluster");
+        }
+    }
+
+    public boolean isCluster() {
+        return cluster;
+    }
+
+    public String stockKey(Long voucherId, int shard, int shards) {
+        return useShardKey(shards) ? stockShardKey(voucherId, shard) : SECKILL_STOCK_KEY + voucherId;
+    }
+
+    public String orderKey(Long voucherId, int shard, int shards) {
+        return useShardKey(shards) ? orderShardKey(voucherId, shard) : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    public String voucherKey(Long voucherId, int shard, int shards) {
+        return useShardKey(shards) ? voucherShardKey(voucherId, shard) : SECKILL_VOUCHER_KEY + voucherId;
+    }
+
+    public String statusKey(Long voucherId, int shard, int shards) {
+        return useShardKey(shards) ? statusShardKey(voucherId, shard) : SECKILL_STATUS_KEY + voucherId;
+    }
+
+    /**
+     * 接收该库存分片订单的stream
+     */
+    public String orderStreamKey(Long voucherId, int shard) {
+        return cluster ? orderShardStreamKey(voucherId, shard) : RedisConstants.orderStreamKey(voucherId, partitions);
+    }
+
+    /**
+     * 库存租约订单的stream，默认布局下按用户分散到各分区，集群布局下与用户所在分片的订单状态key在同一个slot
+     */
+    public String leaseStreamKey(Long voucherId, int shard, Long userId) {
+        return cluster ? orderShardStreamKey(voucherId, shard)
+                : RedisConstants.orderStreamKey(Math.floorMod(userId.hashCode(), partitions), partitions);
+    }
+
+    /**
+     * 当前所有的订单stream
+     */
+    public List<String> orderStreamKeys() {
+        if (!cluster) {
+            List<String> streams = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                streams.add(RedisConstants.orderStreamKey(p, partitions));
+            }
+            return streams;
+        }
+        Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAMS_KEY);
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> streams = new ArrayList<>(members);
+        Collections.sort(streams);
+        return streams;
+    }
+
+    /**
+     * 登记新优惠券各分片的订单stream，默认布局下stream是固定的，不需要登记
+     */
+    public void registerStreams(Long voucherId, int shards) {
+        if (!cluster) {
+            return;
+        }
+        String[] streams = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            streams[i] = orderShardStreamKey(voucherId, i);
+        }
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_STREAMS_KEY, streams);
+    }
+
+    /**
+     * 秒杀结束并且消费完之后注销分片stream
+     */
+    public void unregisterStream(String streamKey) {
+        stringRedisTemplate.opsForSet().remove(SECKILL_ORDER_STREAMS_KEY, streamKey);
+    }
+
+    /**
+     * 分片stream对应的秒杀信息key，默认布局下的分区stream返回null
+     */
+    public String voucherKeyOfStream(String streamKey) {
+        int begin = streamKey.indexOf('{');
+        int end = streamKey.indexOf('}', begin + 1);
+        if (!cluster || begin < 0 || end < 0) {
+            return null;
+        }
+        return SECKILL_VOUCHER_KEY + streamKey.substring(begin, end + 1);
+    }
+
+    private boolean useShardKey(int shards) {
+        return cluster || shards > 1;
+    }
+}
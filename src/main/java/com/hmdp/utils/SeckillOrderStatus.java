@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀订单的处理状态，由秒杀脚本写入排队中，消费者写入已落库或失败。
+ * 超时未支付的订单取消后写入已取消。查询状态只访问redis，终态在本地缓存，重复轮询不再访问redis。
+ * 状态的field为 userId:orderId，用户只能查到自己的订单，猜测其他订单id查不到任何状态。
+ */
+@Component
+public class SeckillOrderStatus {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 订单状态的过期时间(秒)
+    @Value("${hmdp.seckill.order-status-ttl:86400}")
+    private long ttl;
+
+    // userId:orderId -> 终态
+    private final LRUCache<String, String> finalStatus = CacheUtil.newLRUCache(100000, TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * 批量写入状态，一次网络往返
+     *
+     * @param statusByKey 状态key -> (userId:orderId -> 状态)
+     */
+    public void update(Map<String, Map<String, String>> statusByKey) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            statusByKey.forEach((key, status) -> {
+                stringConnection.hMSet(key, status);
+                stringConnection.expire(key, ttl);
+            });
+            return null;
+        });
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * 状态的先后顺序，订单状态只会向后变化，推送时据此丢弃乱序到达的旧状态
+     */
+    public static int version(String status) {
+        if (QUEUED.equals(status)) {
+            return 0;
+        }
+        return CANCELLED.equals(status) ? 2 : 1;
+    }
+
+    public static String field(Long userId, Long orderId) {
+        return userId + ":" + orderId;
+    }
+
+    public String query(String key, Long userId, Long orderId) {
+        // 1.已是终态，直接返回本地缓存
+        String field = field(userId, orderId);
+        String status = finalStatus.get(field, false);
+        if (status != null) {
+            return status;
+        }
+        // 2.查询redis
+        Object value = stringRedisTemplate.opsForHash().get(key, field);
+        if (value == null) {
+            return null;
+        }
+        status = value.toString();
+        // 已落库的订单还可能超时取消，不是终态
+        if (FAILED.equals(status) || CANCELLED.equals(status)) {
+            finalStatus.put(field, status);
+        }
+        return status;
+    }
+}
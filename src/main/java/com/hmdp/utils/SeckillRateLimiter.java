@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.cache.impl.TimedCache;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.SeckillLimitDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_CONFIG_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀请求限流：本地按用户、按优惠券的令牌桶，以及可选的redis集群令牌桶。
+ * 优惠券的限流配置保存在redis中，各节点本地缓存几秒，修改后无需重启即可生效。
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.limit.voucher-qps:2000}")
+    private double defaultVoucherQps;
+
+    @Value("${hmdp.seckill.limit.user-qps:1}")
+    private double defaultUserQps;
+
+    @Value("${hmdp.seckill.limit.global-qps:0}")
+    private double defaultGlobalQps;
+
+    // voucherId -> 限流配置，过期后重新从redis读取
+    private final TimedCache<Long, Limit> limits;
+
+    // voucherId -> 优惠券令牌桶
+    private final Map<Long, TokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+
+    // 用户令牌桶数量有上限，长时间不用的自动淘汰
+    private final LRUCache<String, TokenBucket> userBuckets;
+
+    public SeckillRateLimiter(@Value("${hmdp.seckill.limit.refresh-interval:5000}") long refreshInterval,
+                              @Value("${hmdp.seckill.limit.user-bucket-size:100000}") int userBucketSize) {
+        this.limits = CacheUtil.newTimedCache(refreshInterval);
+        this.userBuckets = CacheUtil.newLRUCache(userBucketSize, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    /**
+     * 尝试通过限流，先判断本地令牌桶，都通过后才访问redis
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        Limit limit = getLimit(voucherId);
+        // 1.用户令牌桶
+        if (!userBucket(voucherId + ":" + userId, limit.userQps).tryAcquire()) {
+            return false;
+        }
+        // 2.优惠券令牌桶，配置变化时重建
+        if (!voucherBucket(voucherId, limit.voucherQps).tryAcquire()) {
+            return false;
+        }
+        // 3.集群令牌桶，一次lua调用
+        if (limit.globalQps <= 0) {
+            return true;
+        }
+        Long allowed = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                String.valueOf(limit.globalQps), String.valueOf(Math.max(1D, limit.globalQps)));
+        return allowed != null && allowed == 1L;
+    }
+
+    /**
+     * 修改优惠券的限流配置，为空的字段使用默认值。
+     * 所有字段一次写入，为空的字段写入空字符串，其他节点不会读到只写了一半或者被删除的配置
+     */
+    public void updateLimit(Long voucherId, SeckillLimitDTO limitDTO) {
+        Map<String, Object> fields = BeanUtil.beanToMap(limitDTO, false, false);
+        fields.replaceAll((field, value) -> value == null ? "" : value.toString());
+        stringRedisTemplate.opsForHash().putAll(SECKILL_LIMIT_CONFIG_KEY + voucherId, fields);
+        limits.remove(voucherId);
+    }
+
+    // 并发的首次请求只创建一个令牌桶，否则后创建的桶会覆盖先创建的桶，令牌数被重置
+    private TokenBucket userBucket(String userKey, double qps) {
+        TokenBucket bucket = userBuckets.get(userKey, false);
+        if (bucket != null && bucket.getQps() == qps) {
+            return bucket;
+        }
+        synchronized (userBuckets) {
+            bucket = userBuckets.get(userKey, false);
+            if (bucket == null || bucket.getQps() != qps) {
+                bucket = new TokenBucket(qps);
+                userBuckets.put(userKey, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    private TokenBucket voucherBucket(Long voucherId, double qps) {
+        TokenBucket bucket = voucherBuckets.get(voucherId);
+        if (bucket != null && bucket.getQps() == qps) {
+            return bucket;
+        }
+        return voucherBuckets.compute(voucherId,
+                (id, old) -> old == null || old.getQps() != qps ? new TokenBucket(qps) : old);
+    }
+
+    private Limit getLimit(Long voucherId) {
+        Limit limit = limits.get(voucherId, false);
+        if (limit != null) {
+            return limit;
+        }
+        // 从redis读取配置，没有配置时使用默认值
+        Map<Object, Object> config = stringRedisTemplate.opsForHash().entries(SECKILL_LIMIT_CONFIG_KEY + voucherId);
+        limit = new Limit(
+                getDouble(config, "voucherQps", defaultVoucherQps),
+                getDouble(config, "userQps", defaultUserQps),
+                getDouble(config, "globalQps", defaultGlobalQps));
+        limits.put(voucherId, limit);
+        return limit;
+    }
+
+    private static double getDouble(Map<Object, Object> config, String field, double defaultValue) {
+        Object value = config.get(field);
+        return value == null || StrUtil.isBlank(value.toString()) ? defaultValue : Double.parseDouble(value.toString());
+    }
+
+    private static class Limit {
+        private final double voucherQps;
+        private final double userQps;
+        private final double globalQps;
+
+        private Limit(double voucherQps, double userQps, double globalQps) {
+            this.voucherQps = voucherQps;
+            this.userQps = userQps;
+            this.globalQps = globalQps;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.QueueTicketDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀排队：用户先领取排队号，后台按订单消费速度分批放行，只有放行的用户才能执行秒杀脚本。
+ * 未放行的用户只需要低频查询排队状态，避免重试风暴直接打到秒杀脚本上。
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> QUEUE_SCRIPT;
+
+    static {
+        QUEUE_SCRIPT = new DefaultRedisScript<>();
+        QUEUE_SCRIPT.setLocation(new ClassPathResource("seckill_queue.lua"));
+        QUEUE_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private OrderLagMonitor orderLagMonitor;
+
+    // 是否开启排队，开启后秒杀请求必须先排队并被放行
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    // 放行间隔(毫秒)
+    @Value("${hmdp.seckill.waiting-room.admit-interval:1000}")
+    private long admitInterval;
+
+    // 每次放行的最少人数，保证刚开始没有消费数据时也能放行
+    @Value("${hmdp.seckill.waiting-room.min-batch:100}")
+    private long minBatch;
+
+    // 每次放行的最多人数
+    @Value("${hmdp.seckill.waiting-room.max-batch:5000}")
+    private long maxBatch;
+
+    // 排队数据的过期时间(秒)
+    @Value("${hmdp.seckill.waiting-room.ttl:86400}")
+    private long ttl;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 领取排队号，重复领取返回原来的排队位置
+     */
+    public QueueTicketDTO join(Long voucherId, Long userId) {
+        QueueTicketDTO ticket = execute(voucherId, userId, true);
+        stringRedisTemplate.opsForSet().add(SECKILL_QUEUE_ACTIVE_KEY, voucherId.toString());
+        return ticket;
+    }
+
+    /**
+     * 查询排队状态
+     */
+    public QueueTicketDTO query(Long voucherId, Long userId) {
+        return execute(voucherId, userId, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueueTicketDTO execute(Long voucherId, Long userId, boolean join) {
+        List<String> keys = Arrays.asList(queueKey(voucherId), queueSeqKey(voucherId), queueAdmittedKey(voucherId));
+        List<Long> result = stringRedisTemplate.execute(QUEUE_SCRIPT, keys,
+                userId.toString(), join ? "1" : "0", String.valueOf(ttl));
+        long rank = result.get(0);
+        long admitted = result.get(1);
+        if (rank < 0) {
+            // 未排队
+            return new QueueTicketDTO(false, -1L);
+        }
+        if (rank < admitted) {
+            return new QueueTicketDTO(true, 0L);
+        }
+        return new QueueTicketDTO(false, rank - admitted + 1);
+    }
+
+    /**
+     * 按订单消费速度分批放行，每轮只有一个节点执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.waiting-room.admit-interval:1000}")
+    public void admit() {
+        // 订单队列积压时暂停放行
+        if (!enabled || orderLagMonitor.isShedding()) {
+            return;
+        }
+        try {
+            // 1.本轮由抢到锁的节点放行
+            Boolean leader = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_QUEUE_ADMIT_LOCK, "1", admitInterval, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(leader)) {
+                return;
+            }
+            Set<String> active = stringRedisTemplate.opsForSet().members(SECKILL_QUEUE_ACTIVE_KEY);
+            if (active == null || active.isEmpty()) {
+                return;
+            }
+            // 2.上一轮消费者实际落库的订单数就是本轮可以放行的人数，由正在排队的优惠券平分
+            String drained = stringRedisTemplate.opsForValue().getAndSet(SECKILL_ORDER_DRAINED_KEY, "0");
+            long budget = Math.max(minBatch, Math.min(maxBatch, drained == null ? 0 : Long.parseLong(drained)));
+            long perVoucher = Math.max(1, budget / active.size());
+            for (String id : active) {
+                admit(Long.valueOf(id), perVoucher);
+            }
+        } catch (Exception e) {
+            log.error("秒杀排队放行失败", e);
+        }
+    }
+
+    private void admit(Long voucherId, long count) {
+        // 1.已售罄的优惠券不再放行，排队的用户查询状态后下单会直接失败
+        Long size = stringRedisTemplate.opsForZSet().zCard(queueKey(voucherId));
+        if (soldOutRegistry.isSoldOut(voucherId) || size == null || size == 0) {
+            stringRedisTemplate.opsForSet().remove(SECKILL_QUEUE_ACTIVE_KEY, voucherId.toString());
+            return;
+        }
+        // 2.放行人数不超过排队人数，后来的用户仍需排队
+        String value = stringRedisTemplate.opsForValue().get(queueAdmittedKey(voucherId));
+        long admitted = value == null ? 0 : Long.parseLong(value);
+        if (admitted >= size) {
+            return;
+        }
+        stringRedisTemplate.opsForValue().set(queueAdmittedKey(voucherId),
+                String.valueOf(Math.min(size, admitted + count)), ttl, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记，秒杀请求在生成订单id和执行lua脚本之前先判断，售罄后的请求不再访问redis。
+ * 标记通过redis发布订阅广播到所有节点，并带有过期时间，库存回补没有广播到时也能自动恢复。
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESTOCK = "restock:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 售罄标记的有效期(秒)
+    @Value("${hmdp.seckill.sold-out-ttl:600}")
+    private long soldOutTtl;
+
+    // voucherId -> 标记过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            // 标记过期，重新交给lua脚本判断
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        // 本节点已标记过，不再重复广播
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        putSoldOut(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+    }
+
+    /**
+     * 库存回补后清除售罄标记并通知其他节点
+     */
+    public void clearSoldOut(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                putSoldOut(Long.valueOf(StrUtil.removePrefix(body, SOLD_OUT)));
+            } else if (body.startsWith(RESTOCK)) {
+                soldOut.remove(Long.valueOf(StrUtil.removePrefix(body, RESTOCK)));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法解析售罄消息: {}", body);
+        }
+    }
+
+    private void putSoldOut(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtl * 1000);
+    }
+}
@@ -0,0 +1,504 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 本地库存租约，用于最热门的优惠券。每个节点从redis一次租用一批库存，秒杀请求只在本地扣减计数并用本地集合判断重复下单，
+ * 然后把订单写入按用户分区的stream，不再对库存key执行lua脚本，吞吐量随节点数扩展。
+ * <p>
+ * 租约记录在 seckill:lease:{voucherId} 中：节点 -> 已租用但订单还未落库的库存数，订单落库后由消费者扣减，
+ * 所以任何时刻 redis库存 + 已下单用户数 + 租约数 = 初始库存。租约到期或节点关闭时归还未用完的库存；
+ * 节点宕机且心跳过期后，其他节点回收它的租约，回收前确认接收租约订单的stream已经消费完，保证宕机前的订单都已结算。
+ * <p>
+ * 一人一单只在节点内判断，同一用户在不同节点重复下单时由数据库唯一索引拒绝，消费者归还这部分库存并把订单标记为失败。
+ * 订单超时取消后通过发布订阅通知各节点移除本地的下单用户，用户可以重新购买。
+ */
+@Slf4j
+@Component
+public class StockLeaseManager implements MessageListener {
+
+    private static final DefaultRedisScript<Long> STOCK_BORROW_SCRIPT;
+
+    static {
+        STOCK_BORROW_SCRIPT = new DefaultRedisScript<>();
+        STOCK_BORROW_SCRIPT.setLocation(new ClassPathResource("stock_borrow.lua"));
+        STOCK_BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_SETTLE_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_SETTLE_SHARD_SCRIPT;
+
+    static {
+        SECKILL_LEASE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        SECKILL_LEASE_SCRIPT.setResultType(Long.class);
+        LEASE_SETTLE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SETTLE_SCRIPT.setLocation(new ClassPathResource("lease_settle.lua"));
+        LEASE_SETTLE_SCRIPT.setResultType(Long.class);
+        LEASE_SETTLE_SHARD_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SETTLE_SHARD_SCRIPT.setLocation(new ClassPathResource("lease_settle_shard.lua"));
+        LEASE_SETTLE_SHARD_SCRIPT.setResultType(Long.class);
+    }
+
+    // 租约模式下的秒杀结果：0.成功 1.库存不足 2.重复下单 3.未开始 4.已结束，与秒杀脚本一致
+    private static final int SUCCESS = 0;
+    private static final int NO_STOCK = 1;
+    private static final int DUPLICATE = 2;
+    private static final int NOT_STARTED = 3;
+    private static final int ENDED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private OrderStreamMaintainer orderStreamMaintainer;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    // 开启本地库存租约的优惠券id，逗号分隔，为空时不开启
+    @Value("${hmdp.seckill.lease.voucher-ids:}")
+    private String voucherIds;
+
+    // 每次租用的库存数
+    @Value("${hmdp.seckill.lease.chunk:100}")
+    private long chunk;
+
+    // 租约有效期(毫秒)，到期未用完的库存归还redis
+    @Value("${hmdp.seckill.lease.ttl:30000}")
+    private long leaseTtl;
+
+    // 节点心跳过期时间(秒)
+    @Value("${hmdp.seckill.lease.heartbeat-ttl:300}")
+    private long heartbeatTtl;
+
+    @Value("${hmdp.seckill.consumer.name-prefix:}")
+    private String nodeNamePrefix;
+
+    private final Set<Long> leaseVouchers = new HashSet<>();
+
+    private String nodeId;
+
+    // voucherId -> 本节点的租约
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        for (String id : StrUtil.split(voucherIds, ',', true, true)) {
+            leaseVouchers.add(Long.valueOf(id));
+        }
+        nodeId = StrUtil.blankToDefault(nodeNamePrefix,
+                ManagementFactory.getRuntimeMXBean().getName().replace('@', '-'));
+        if (!leaseVouchers.isEmpty()) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_LEASE_RELEASE_CHANNEL));
+        }
+    }
+
+    public boolean isEnabled(Long voucherId) {
+        return leaseVouchers.contains(voucherId);
+    }
+
+    /**
+     * 本节点是否还有租用的库存，售罄标记不拦截这部分库存
+     */
+    public boolean hasLocalStock(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && lease.remaining.get() > 0;
+    }
+
+    /**
+     * 使用本地租约秒杀
+     *
+     * @return 与秒杀脚本相同的结果码
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        // 1.判断秒杀时间窗口
+        Lease lease = leases.computeIfAbsent(voucherId, this::newLease);
+        long now = System.currentTimeMillis();
+        if (now < lease.beginTime) {
+            return NOT_STARTED;
+        }
+        if (now > lease.endTime) {
+            return ENDED;
+        }
+        // 2.本节点内一人一单
+        if (!lease.buyers.add(userId)) {
+            return DUPLICATE;
+        }
+        // 3.扣减本地库存，不足时续租
+        while (!lease.tryTake()) {
+            if (!renew(lease)) {
+                lease.buyers.remove(userId);
+                return NO_STOCK;
+            }
+        }
+        // 4.订单按用户写入不同的stream，分散到多个slot，同时记录订单状态为排队中
+        int home = Math.floorMod(userId.hashCode(), lease.shards);
+        List<String> keys = Arrays.asList(seckillKeys.leaseStreamKey(voucherId, home, userId),
+                seckillKeys.statusKey(voucherId, home, lease.shards));
+        try {
+            stringRedisTemplate.execute(SECKILL_LEASE_SCRIPT, keys, voucherId.toString(), userId.toString(),
+                    String.valueOf(orderId), nodeId, String.valueOf(seckillOrderStatus.getTtl()));
+        } catch (RuntimeException e) {
+            lease.remaining.incrementAndGet();
+            lease.buyers.remove(userId);
+            throw e;
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * 消费者结算租约模式的订单：落库的订单记录下单用户并扣减租约，被唯一索引拒绝的订单归还库存并扣减租约。
+     * 结算在ACK之前执行，消息重复投递时按订单id跳过已经结算的订单，不会重复归还库存或扣减租约
+     */
+    public void settle(String node, List<VoucherOrder> persisted, List<VoucherOrder> rejected) {
+        // 1.按优惠券分组扣减租约，按优惠券和用户所属分片分组结算订单，同一组的key在同一个slot
+        Map<Long, List<String>> orderIds = new HashMap<>();
+        Map<Long, Map<Integer, List<String>>> shardArgs = new HashMap<>();
+        Map<Long, Integer> shards = new HashMap<>();
+        String ttl = String.valueOf(seckillOrderStatus.getTtl());
+        for (VoucherOrder o : persisted) {
+            addSettleArgs(o, true, ttl, orderIds, shardArgs, shards);
+        }
+        for (VoucherOrder o : rejected) {
+            addSettleArgs(o, false, ttl, orderIds, shardArgs, shards);
+        }
+        // 2.记录下单用户，归还重复下单占用的库存
+        shardArgs.forEach((voucherId, byShard) -> {
+            int voucherShards = shards.get(voucherId);
+            long returned = 0;
+            for (Map.Entry<Integer, List<String>> entry : byShard.entrySet()) {
+                int home = entry.getKey();
+                List<String> keys = Arrays.asList(seckillKeys.statusKey(voucherId, home, voucherShards),
+                        seckillKeys.orderKey(voucherId, home, voucherShards),
+                        seckillKeys.stockKey(voucherId, home, voucherShards));
+                Long r = stringRedisTemplate.execute(LEASE_SETTLE_SHARD_SCRIPT, keys, entry.getValue().toArray());
+                returned += r == null ? 0 : r;
+            }
+            if (returned > 0) {
+                soldOutRegistry.clearSoldOut(voucherId);
+            }
+        });
+        // 3.扣减租约，ARGV：节点、过期时间、订单id...
+        orderIds.forEach((voucherId, ids) -> {
+            List<String> args = new ArrayList<>(ids.size() + 2);
+            args.add(node);
+            args.add(ttl);
+            args.addAll(ids);
+            stringRedisTemplate.execute(LEASE_SETTLE_SCRIPT,
+                    Arrays.asList(leaseKey(voucherId), leaseSettledKey(voucherId)), args.toArray());
+        });
+    }
+
+    private void addSettleArgs(VoucherOrder o, boolean persisted, String ttl, Map<Long, List<String>> orderIds,
+                               Map<Long, Map<Integer, List<String>>> shardArgs, Map<Long, Integer> shards) {
+        Long voucherId = o.getVoucherId();
+        int voucherShards = shards.computeIfAbsent(voucherId, this::getStockShards);
+        int home = Math.floorMod(o.getUserId().hashCode(), voucherShards);
+        orderIds.computeIfAbsent(voucherId, k -> new ArrayList<>()).add(o.getId().toString());
+        // 分片脚本的ARGV：过期时间、(用户id, 订单id, 是否落库)...
+        List<String> args = shardArgs.computeIfAbsent(voucherId, k -> new HashMap<>())
+                .computeIfAbsent(home, k -> new ArrayList<>(Collections.singletonList(ttl)));
+        args.add(o.getUserId().toString());
+        args.add(o.getId().toString());
+        args.add(persisted ? "1" : "0");
+    }
+
+    /**
+     * 订单取消后移除各节点本地记录的下单用户，库存已经由取消脚本归还redis
+     */
+    public void releaseBuyers(List<VoucherOrder> cancelled) {
+        // 消息格式 voucherId:userId,voucherId:userId
+        StringJoiner body = new StringJoiner(",");
+        for (VoucherOrder o : cancelled) {
+            if (isEnabled(o.getVoucherId())) {
+                removeBuyer(o.getVoucherId(), o.getUserId());
+                body.add(o.getVoucherId() + ":" + o.getUserId());
+            }
+        }
+        if (body.length() > 0) {
+            stringRedisTemplate.convertAndSend(SECKILL_LEASE_RELEASE_CHANNEL, body.toString());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String buyer : StrUtil.split(body, ',', true, true)) {
+            try {
+                removeBuyer(Long.valueOf(StrUtil.subBefore(buyer, ":", false)),
+                        Long.valueOf(StrUtil.subAfter(buyer, ":", false)));
+            } catch (NumberFormatException e) {
+                log.error("无法解析租约下单用户消息: {}", buyer);
+            }
+        }
+    }
+
+    private void removeBuyer(Long voucherId, Long userId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.buyers.remove(userId);
+        }
+    }
+
+    /**
+     * 到期的租约归还未用完的库存，并刷新本节点心跳
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.lease.check-interval:5000}")
+    public void expireLeases() {
+        if (leaseVouchers.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(SECKILL_LEASE_NODE_KEY + nodeId, "1", heartbeatTtl, TimeUnit.SECONDS);
+            long now = System.currentTimeMillis();
+            for (Lease lease : leases.values()) {
+                if (now > lease.expireAt || now > lease.endTime) {
+                    release(lease);
+                }
+                reportRemaining(lease);
+                // 秒杀结束后删除本地状态
+                if (now > lease.endTime) {
+                    leases.remove(lease.voucherId, lease);
+                }
+            }
+        } catch (Exception e) {
+            log.error("检查库存租约失败", e);
+        }
+    }
+
+    /**
+     * 回收心跳已过期的节点的租约，每轮只有一个节点执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.lease.reclaim-interval:60000}")
+    public void reclaimLeases() {
+        if (leaseVouchers.isEmpty()) {
+            return;
+        }
+        try {
+            Boolean leader = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_LEASE_LOCK, "1", 10, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(leader)) {
+                return;
+            }
+            for (Long voucherId : leaseVouchers) {
+                Map<Object, Object> nodes = stringRedisTemplate.opsForHash().entries(leaseKey(voucherId));
+                int shards = getStockShards(voucherId);
+                Boolean drained = null;
+                for (Map.Entry<Object, Object> entry : nodes.entrySet()) {
+                    String node = entry.getKey().toString();
+                    if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_LEASE_NODE_KEY + node))) {
+                        continue;
+                    }
+                    // 宕机节点已写入stream的订单在落库结算之前仍计入租约，stream消费完之前回收会重复归还库存，下一轮再试
+                    if (drained == null) {
+                        drained = isDrained(voucherId, shards);
+                    }
+                    if (!drained) {
+                        log.info("优惠券{}的订单stream还有未消费的消息，暂不回收节点{}的库存租约", voucherId, node);
+                        continue;
+                    }
+                    // 先删除租约再归还库存，重复执行也不会多还
+                    Long deleted = stringRedisTemplate.opsForHash().delete(leaseKey(voucherId), node);
+                    stringRedisTemplate.opsForHash().delete(leaseRemainingKey(voucherId), node);
+                    long count = Long.parseLong(entry.getValue().toString());
+                    if (deleted != null && deleted > 0 && count > 0) {
+                        stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId, 0, shards), count);
+                        soldOutRegistry.clearSoldOut(voucherId);
+                        log.warn("回收宕机节点{}的优惠券{}库存租约{}", node, voucherId, count);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("回收库存租约失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 节点关闭时归还所有未用完的库存
+        for (Lease lease : leases.values()) {
+            try {
+                release(lease);
+            } catch (Exception e) {
+                log.error("归还优惠券{}的库存租约失败", lease.voucherId, e);
+            }
+        }
+    }
+
+    // 接收该优惠券租约订单的stream都没有未投递和未确认的消息
+    private boolean isDrained(Long voucherId, int shards) {
+        if (!seckillKeys.isCluster()) {
+            // 默认布局下租约订单按用户分散到所有分区
+            return seckillKeys.orderStreamKeys().stream().allMatch(orderStreamMaintainer::isDrained);
+        }
+        for (int i = 0; i < shards; i++) {
+            if (!orderStreamMaintainer.isDrained(seckillKeys.orderStreamKey(voucherId, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Lease newLease(Long voucherId) {
+        int shards = getStockShards(voucherId);
+        List<Object> window = stringRedisTemplate.opsForHash()
+                .multiGet(seckillKeys.voucherKey(voucherId, 0, shards), Arrays.asList("beginTime", "endTime"));
+        Lease lease = new Lease(voucherId, shards);
+        if (window.get(0) != null) {
+            lease.beginTime = Long.parseLong(window.get(0).toString());
+            lease.endTime = Long.parseLong(window.get(1).toString());
+        }
+        return lease;
+    }
+
+    private boolean renew(Lease lease) {
+        synchronized (lease) {
+            // 1.其他线程已经续租
+            if (lease.remaining.get() > 0) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < lease.emptyUntil) {
+                return false;
+            }
+            // 2.依次从各个分片租用库存，先扣减redis库存再记录租约
+            long leased = 0;
+            for (int i = 0; i < lease.shards && leased < chunk; i++) {
+                int shard = Math.floorMod(nodeId.hashCode() + i, lease.shards);
+                Long borrowed = stringRedisTemplate.execute(STOCK_BORROW_SCRIPT,
+                        Collections.singletonList(seckillKeys.stockKey(lease.voucherId, shard, lease.shards)),
+                        String.valueOf(chunk - leased));
+                leased += borrowed == null ? 0 : borrowed;
+            }
+            if (leased == 0) {
+                // 3.redis库存已经租完，短时间内不再尝试，其他节点的租约到期后会归还
+                lease.emptyUntil = now + 1000;
+                return false;
+            }
+            // 记录租约前先刷新心跳，避免刚启动的节点被当作已宕机
+            stringRedisTemplate.opsForValue().set(SECKILL_LEASE_NODE_KEY + nodeId, "1", heartbeatTtl, TimeUnit.SECONDS);
+            stringRedisTemplate.opsForHash().increment(leaseKey(lease.voucherId), nodeId, leased);
+            lease.remaining.addAndGet(leased);
+            lease.expireAt = now + leaseTtl;
+            reportRemaining(lease);
+            return true;
+        }
+    }
+
+    private void release(Lease lease) {
+        long count;
+        synchronized (lease) {
+            count = lease.remaining.getAndSet(0);
+        }
+        if (count <= 0) {
+            return;
+        }
+        stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(lease.voucherId, 0, lease.shards), count);
+        stringRedisTemplate.opsForHash().increment(leaseKey(lease.voucherId), nodeId, -count);
+        reportRemaining(lease);
+        // 归还的库存可以被其他节点租用，清除售罄标记
+        soldOutRegistry.clearSoldOut(lease.voucherId);
+        log.info("归还优惠券{}的库存租约{}", lease.voucherId, count);
+    }
+
+    /**
+     * 各节点租用后还没有卖出的库存之和，由各节点在续租、归还和定期检查时上报，有检查间隔的延迟
+     */
+    public long getLeasedStock(Long voucherId) {
+        long total = 0;
+        for (Object value : stringRedisTemplate.opsForHash().values(leaseRemainingKey(voucherId))) {
+            total += Long.parseLong(value.toString());
+        }
+        return total;
+    }
+
+    // 上报本节点的剩余租约库存，节点宕机后随心跳一起过期
+    private void reportRemaining(Lease lease) {
+        String key = leaseRemainingKey(lease.voucherId);
+        stringRedisTemplate.opsForHash().put(key, nodeId, String.valueOf(Math.max(lease.remaining.get(), 0)));
+        stringRedisTemplate.expire(key, heartbeatTtl, TimeUnit.SECONDS);
+    }
+
+    private int getStockShards(Long voucherId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+        return StrUtil.isBlank(value) ? 1 : Integer.parseInt(value);
+    }
+
+    private static class Lease {
+        private final Long voucherId;
+        // 库存分片数，秒杀开始后不会再变化
+        private final int shards;
+        // 本地剩余库存
+        private final AtomicLong remaining = new AtomicLong();
+        // 在本节点下单的用户
+        private final Set<Long> buyers = ConcurrentHashMap.newKeySet();
+        private volatile long expireAt;
+        // 没有库存可租时，在此之前不再尝试续租
+        private volatile long emptyUntil;
+        // 秒杀时间窗口，没有秒杀信息时不限制
+        private long beginTime = Long.MIN_VALUE;
+        private long endTime = Long.MAX_VALUE;
+
+        private Lease(Long voucherId, int shards) {
+            this.voucherId = voucherId;
+            this.shards = shards;
+        }
+
+        private boolean tryTake() {
+            while (true) {
+                long n = remaining.get();
+                if (n <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(n, n - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
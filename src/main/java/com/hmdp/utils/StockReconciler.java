@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.SeckillStockDTO;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账。redis扣库存和记录下单用户在同一个脚本中完成，数据库扣库存和插入订单在同一个事务中完成，
+ * 所以任何时刻都应满足：redis库存 + 已下单用户数 + 节点租用的库存 = 数据库库存 + 未取消订单数 = 初始库存，
+ * 两边的差值就是库存漂移，与消息是否还在stream中等待消费无关。
+ * 已下单用户数 - 未取消订单数 是还没有落库的订单数(包括死信队列中的订单)。
+ * <p>
+ * 只自动修正不会超卖的方向：redis多出的库存从各分片扣除；redis少了库存时不自动补回，
+ * 因为数据库一侧也可能是错的(例如扣库存失败但订单已插入)，补回可能把已经卖出的库存再卖一次，需要人工核对后处理。
+ */
+@Slf4j
+@Component
+public class StockReconciler {
+
+    private static final DefaultRedisScript<Long> STOCK_BORROW_SCRIPT;
+
+    static {
+        STOCK_BORROW_SCRIPT = new DefaultRedisScript<>();
+        STOCK_BORROW_SCRIPT.setLocation(new ClassPathResource("stock_borrow.lua"));
+        STOCK_BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    // 每页对账的优惠券数
+    @Value("${hmdp.seckill.reconcile.page-size:200}")
+    private int pageSize;
+
+    // 结束超过该时间(秒)的优惠券不再对账
+    @Value("${hmdp.seckill.reconcile.grace:86400}")
+    private long grace;
+
+    // 是否以数据库为准修正redis库存，关闭时只打印日志
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    @Value("${hmdp.seckill.reconcile.interval:60000}")
+    private long interval;
+
+    // voucherId -> 上一轮发现的漂移，连续两轮相同才确认，排除两次读取之间有请求下单造成的误差
+    private Map<Long, Long> suspected = new HashMap<>();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        try {
+            // 1.每轮只有一个节点对账
+            Boolean leader = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_RECONCILE_LOCK, "1", interval / 2, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(leader)) {
+                return;
+            }
+            // 2.按voucherId游标分页，每页一次数据库查询和一次redis管道
+            Map<Long, Long> drifts = new HashMap<>();
+            LocalDateTime endAfter = LocalDateTime.now().minusSeconds(grace);
+            long cursor = 0;
+            List<SeckillStockDTO> page;
+            do {
+                page = seckillVoucherMapper.queryStockAfter(cursor, endAfter, pageSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                reconcilePage(page, drifts);
+                cursor = page.get(page.size() - 1).getVoucherId();
+            } while (page.size() == pageSize);
+            suspected = drifts;
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        }
+    }
+
+    private void reconcilePage(List<SeckillStockDTO> page, Map<Long, Long> drifts) {
+        // 1.查询每张券的库存分片数
+        List<String> shardKeys = new ArrayList<>(page.size());
+        for (SeckillStockDTO dto : page) {
+            shardKeys.add(SECKILL_STOCK_SHARDS_KEY + dto.getVoucherId());
+        }
+        List<String> shardValues = stringRedisTemplate.opsForValue().multiGet(shardKeys);
+        int[] shards = new int[page.size()];
+        for (int i = 0; i < page.size(); i++) {
+            String value = shardValues == null ? null : shardValues.get(i);
+            shards[i] = StrUtil.isBlank(value) ? 1 : Integer.parseInt(value);
+        }
+        // 2.管道读取每个分片的库存和已下单用户数，以及各节点租用的库存
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < page.size(); i++) {
+                Long voucherId = page.get(i).getVoucherId();
+                for (int shard = 0; shard < shards[i]; shard++) {
+                    stringConnection.get(seckillKeys.stockKey(voucherId, shard, shards[i]));
+                    stringConnection.sCard(seckillKeys.orderKey(voucherId, shard, shards[i]));
+                }
+                stringConnection.hVals(leaseKey(voucherId));
+            }
+            return null;
+        });
+        // 3.逐张券比较
+        int index = 0;
+        for (int i = 0; i < page.size(); i++) {
+            SeckillStockDTO dto = page.get(i);
+            long redisStock = 0;
+            long buyers = 0;
+            boolean found = false;
+            for (int shard = 0; shard < shards[i]; shard++) {
+                Object stock = results.get(index++);
+                Object members = results.get(index++);
+                if (stock != null) {
+                    redisStock += Long.parseLong(stock.toString());
+                    found = true;
+                }
+                buyers += members == null ? 0 : (Long) members;
+            }
+            long leased = 0;
+            Object leases = results.get(index++);
+            if (leases != null) {
+                for (Object value : (List<?>) leases) {
+                    leased += Long.parseLong(value.toString());
+                }
+            }
+            // redis中没有库存，说明不是通过秒杀接口发布的券
+            if (!found) {
+                continue;
+            }
+            long dbTotal = dto.getStock() + dto.getOrders();
+            long drift = dbTotal - (redisStock + buyers + leased);
+            if (drift == 0) {
+                continue;
+            }
+            drifts.put(dto.getVoucherId(), drift);
+            if (!Long.valueOf(drift).equals(suspected.get(dto.getVoucherId()))) {
+                continue;
+            }
+            log.warn("优惠券{}库存不一致: redis库存{} 已下单{} 租约{}, 数据库库存{} 订单{}, 未落库订单{}, 差值{}",
+                    dto.getVoucherId(), redisStock, buyers, leased, dto.getStock(), dto.getOrders(),
+                    buyers - dto.getOrders(), drift);
+            if (drift > 0) {
+                // redis少了库存，补回可能超卖，只提示人工核对
+                log.error("优惠券{}的redis库存比数据库少{}，需要人工核对后处理", dto.getVoucherId(), drift);
+            } else if (repair) {
+                repair(dto.getVoucherId(), shards[i], -drift);
+                drifts.remove(dto.getVoucherId());
+            }
+        }
+    }
+
+    private void repair(Long voucherId, int shards, long excess) {
+        // redis多出的库存依次从各分片扣除，分片库存不会被扣成负数
+        long removed = 0;
+        for (int shard = 0; shard < shards && removed < excess; shard++) {
+            Long taken = stringRedisTemplate.execute(STOCK_BORROW_SCRIPT,
+                    Collections.singletonList(seckillKeys.stockKey(voucherId, shard, shards)), String.valueOf(excess - removed));
+            removed += taken == null ? 0 : taken;
+        }
+        log.warn("已按数据库扣除优惠券{}在redis中多出的库存{}，实际扣除{}", voucherId, excess, removed);
+    }
+}
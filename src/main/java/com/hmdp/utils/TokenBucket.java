@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+/**
+ * 本地令牌桶，容量为一秒的令牌数，至少为1
+ */
+public class TokenBucket {
+
+    private final double qps;
+    private final double ratePerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillTime;
+
+    public TokenBucket(double qps) {
+        this.qps = qps;
+        this.ratePerNano = qps / 1_000_000_000D;
+        this.capacity = Math.max(1D, qps);
+        this.tokens = capacity;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    public double getQps() {
+        return qps;
+    }
+
+    public synchronized boolean tryAcquire() {
+        // 1.按流逝的时间补充令牌
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillTime) * ratePerNano);
+        lastRefillTime = now;
+        // 2.令牌不足，拒绝
+        if (tokens < 1D) {
+            return false;
+        }
+        tokens -= 1D;
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+-- 秒杀订单一人一单由唯一索引保证，消费者使用 INSERT IGNORE 幂等写入，不再需要分布式锁
+ALTER TABLE `tb_voucher_order`
+    ADD UNIQUE KEY `uk_user_voucher` (`user_id`, `voucher_id`);
+
+-- 库存对账按优惠券统计未取消的订单数，只扫描索引
+ALTER TABLE `tb_voucher_order`
+    ADD INDEX `idx_voucher_status` (`voucher_id`, `status`);
+
+-- 超时取消的订单不再占用一人一单的唯一索引，用户可以重新购买；唯一索引允许多个NULL
+ALTER TABLE `tb_voucher_order`
+    DROP INDEX `uk_user_voucher`,
+    ADD COLUMN `active` tinyint(1) GENERATED ALWAYS AS (IF(`status` = 4, NULL, 1)) VIRTUAL,
+    ADD UNIQUE KEY `uk_user_voucher_active` (`user_id`, `voucher_id`, `active`);
@@ -0,0 +1,26 @@
+---
+--- FileName: lease_settle
+--- Description: 扣减租约模式订单占用的租约，每个订单只扣减一次，消息重复投递时不会重复扣减
+---
+
+-- 1.参数列表，两个key使用{voucherId}作为hash tag
+-- 1.1 租约key，节点 -> 已租用但订单还未结算的库存数
+local leaseKey = KEYS[1]
+-- 1.2 已扣减租约的订单id
+local settledKey = KEYS[2]
+-- 1.3 租用库存的节点
+local node = ARGV[1]
+-- 1.4 已结算记录的过期时间(秒)，需大于消息重复投递的最大间隔
+local ttl = ARGV[2]
+
+-- 2.只统计第一次结算的订单
+local count = 0
+for i = 3, #ARGV do
+    count = count + redis.call('sadd', settledKey, ARGV[i])
+end
+-- 3.扣减租约
+if (count > 0) then
+    redis.call('hincrby', leaseKey, node, -count)
+end
+redis.call('expire', settledKey, ttl)
+return count
@@ -0,0 +1,36 @@
+---
+--- FileName: lease_settle_shard
+--- Description: 结算租约模式的订单：落库的订单记录下单用户，被唯一索引拒绝的订单归还库存，每个订单只结算一次
+---
+
+-- 1.参数列表，集群布局下三个key使用用户所属分片的hash tag
+-- 1.1 订单状态key，结算标记保存在这里
+local statusKey = KEYS[1]
+-- 1.2 下单用户key
+local orderKey = KEYS[2]
+-- 1.3 用户所属分片的库存key
+local stockKey = KEYS[3]
+-- 1.4 订单状态的过期时间(秒)
+local statusTtl = ARGV[1]
+
+-- 2.订单按 userId, orderId, 是否落库(1/0) 三个一组
+local returned = 0
+for i = 2, #ARGV, 3 do
+    local userId = ARGV[i]
+    -- 2.1 已经结算过的订单跳过，重复投递不会重复归还库存
+    if (redis.call('hsetnx', statusKey, userId .. ':' .. ARGV[i + 1] .. ':settled', '1') == 1) then
+        if (ARGV[i + 2] == '1') then
+            -- 2.2 记录下单用户，超时取消和库存对账都依赖它
+            redis.call('sadd', orderKey, userId)
+        else
+            -- 2.3 同一用户在其他节点已下单，归还库存
+            returned = returned + 1
+        end
+    end
+end
+-- 3.归还库存
+if (returned > 0) then
+    redis.call('incrby', stockKey, returned)
+end
+redis.call('expire', statusKey, statusTtl)
+return returned
@@ -0,0 +1,32 @@
+---
+--- FileName: rate_limit
+--- Description: 集群令牌桶限流脚本，使用redis服务器时间补充令牌
+---
+
+-- 1.参数列表
+-- 1.1 令牌桶key
+local key = KEYS[1]
+-- 1.2 每秒令牌数
+local rate = tonumber(ARGV[1])
+-- 1.3 桶容量
+local capacity = tonumber(ARGV[2])
+
+-- 2.按流逝的时间补充令牌
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+
+-- 3.获取令牌
+local allowed = 0
+if (tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+
+-- 4.保存令牌桶，桶装满后自动过期
+redis.call('hset', key, 'tokens', tostring(tokens), 'ts', tostring(now))
+redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+return allowed
@@ -5,28 +5,50 @@
 --- Date: 2023/2/23 19:52
 ---
 
--- 1.参数列表
--- 1.1 优惠券id
+-- 1.参数列表，所有key都通过KEYS传入，集群布局下使用相同的hash tag，可以在Redis Cluster中执行
+-- 1.1 库存key
+local stockKey = KEYS[1]
+-- 1.2 订单key
+local orderKey = KEYS[2]
+-- 1.3 订单消息队列key
+local streamKey = KEYS[3]
+-- 1.4 秒杀信息key
+local voucherKey = KEYS[4]
+-- 1.5 订单状态key
+local statusKey = KEYS[5]
+-- 1.6 优惠券id
 local voucherId = ARGV[1]
--- 1.2 用户id
+-- 1.7 用户id
 local userId = ARGV[2]
--- 1.3 订单id
+-- 1.8 订单id
 local orderId = ARGV[3]
-
--- 2.数据key
--- 2.1 库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 1.9 订单状态的过期时间(秒)
+local statusTtl = ARGV[4]
 
 -- 脚本业务
+-- 3.0 判断秒杀时间窗口，使用redis服务器时间，不受应用节点时钟影响
+local window = redis.call('hmget', voucherKey, 'beginTime', 'endTime')
+if (window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        -- 尚未开始，返回3
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        -- 已经结束，返回4
+        return 4
+    end
+end
+
 -- 3.1 判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
     -- 库存不足,返回1
     return 1
 end
 
 -- 3.2 判断用户是否下过订单，SISMEMBER orderKey userId
+-- 每人限购固定为1件，与数据库 (user_id, voucher_id, active) 唯一索引一致，所以不读取秒杀信息中的限购数
 if (redis.call('sismember', orderKey, userId) == 1) then
     -- 3.3 存在，返回2
     return 2
@@ -37,6 +59,9 @@ redis.call('incrby', stockKey, -1)
 -- 3.5 下单（保存用户）
 redis.call('sadd', orderKey, userId)
 -- 3.6 发送消息到队列中
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.7 记录订单状态为排队中，field带有用户id，只有下单用户能查询
+redis.call('hset', statusKey, userId .. ':' .. orderId, 'QUEUED')
+redis.call('expire', statusKey, statusTtl)
 -- 返回0
 return 0
\ No newline at end of file
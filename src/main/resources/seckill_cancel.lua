@@ -0,0 +1,31 @@
+---
+--- FileName: seckill_cancel
+--- Description: 超时未支付订单取消后归还redis库存，重复执行不会多还
+---
+
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.下单用户key
+local orderKey = KEYS[2]
+-- 1.3.订单状态key
+local statusKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+-- 1.5.订单id
+local orderId = ARGV[2]
+
+-- 1.6.订单状态的field
+local statusField = userId .. ':' .. orderId
+
+-- 2.已经归还过库存，重复执行直接返回
+if (redis.call('hget', statusKey, statusField) == 'CANCELLED') then
+    return 0
+end
+-- 3.移除下单用户，允许重新购买，并归还库存
+if (redis.call('srem', orderKey, userId) == 1) then
+    redis.call('incrby', stockKey, 1)
+end
+-- 4.记录订单已取消
+redis.call('hset', statusKey, statusField, 'CANCELLED')
+return 1
@@ -0,0 +1,27 @@
+---
+--- FileName: seckill_lease
+--- Description: 库存租约模式下单，库存和一人一单已在节点本地判断，这里只发送订单消息并记录订单状态
+---
+
+-- 1.参数列表，集群布局下两个key使用用户所属分片的hash tag
+-- 1.1 订单消息队列key
+local streamKey = KEYS[1]
+-- 1.2 订单状态key
+local statusKey = KEYS[2]
+-- 1.3 优惠券id
+local voucherId = ARGV[1]
+-- 1.4 用户id
+local userId = ARGV[2]
+-- 1.5 订单id
+local orderId = ARGV[3]
+-- 1.6 租用库存的节点，消费者据此结算租约
+local node = ARGV[4]
+-- 1.7 订单状态的过期时间(秒)
+local statusTtl = ARGV[5]
+
+-- 2.发送消息到队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'node', node)
+-- 3.记录订单状态为排队中，与秒杀脚本相同
+redis.call('hset', statusKey, userId .. ':' .. orderId, 'QUEUED')
+redis.call('expire', statusKey, statusTtl)
+return 0
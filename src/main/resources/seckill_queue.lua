@@ -0,0 +1,33 @@
+---
+--- FileName: seckill_queue
+--- Description: 秒杀排队脚本，领取排队号或查询排队状态
+---
+
+-- 1.参数列表
+-- 1.1 排队队列key
+local queueKey = KEYS[1]
+-- 1.2 排队序号key
+local seqKey = KEYS[2]
+-- 1.3 已放行人数key
+local admittedKey = KEYS[3]
+-- 1.4 用户id
+local userId = ARGV[1]
+-- 1.5 是否领取排队号，1领取 0只查询
+local join = ARGV[2]
+-- 1.6 排队key的过期时间(秒)
+local ttl = ARGV[3]
+
+-- 2.查询用户的排名
+local rank = redis.call('zrank', queueKey, userId)
+if ((not rank) and join == '1') then
+    -- 2.1 未排队，按递增序号排到队尾
+    local seq = redis.call('incr', seqKey)
+    redis.call('zadd', queueKey, seq, userId)
+    redis.call('expire', queueKey, ttl)
+    redis.call('expire', seqKey, ttl)
+    rank = redis.call('zcard', queueKey) - 1
+end
+
+-- 3.返回排名和已放行人数，未排队时排名为-1
+local admitted = tonumber(redis.call('get', admittedKey)) or 0
+return {rank or -1, admitted}
@@ -0,0 +1,61 @@
+---
+--- FileName: seckill_shard
+--- Description: 分片库存秒杀脚本，只操作用户所属分片的key，不同分片可以落在不同的slot
+---
+
+-- 1.参数列表
+-- 1.1 分片库存key
+local stockKey = KEYS[1]
+-- 1.2 分片订单key
+local orderKey = KEYS[2]
+-- 1.3 消息队列key
+local streamKey = KEYS[3]
+-- 1.4 分片秒杀信息key
+local voucherKey = KEYS[4]
+-- 1.5 分片订单状态key
+local statusKey = KEYS[5]
+-- 1.6 优惠券id
+local voucherId = ARGV[1]
+-- 1.7 用户id
+local userId = ARGV[2]
+-- 1.8 订单id
+local orderId = ARGV[3]
+-- 1.9 订单状态的过期时间(秒)
+local statusTtl = ARGV[4]
+
+-- 2.判断秒杀时间窗口
+local window = redis.call('hmget', voucherKey, 'beginTime', 'endTime')
+if (window[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(window[1])) then
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        return 4
+    end
+end
+
+-- 3.判断用户是否下过订单，用户总是路由到同一个分片，所以只需要判断本分片
+-- 每人限购固定为1件，与数据库 (user_id, voucher_id, active) 唯一索引一致
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，返回2
+    return 2
+end
+
+-- 4.判断本分片库存是否充足
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- 库存不足,返回1，由调用方向相邻分片借库存
+    return 1
+end
+
+-- 5.扣库存
+redis.call('incrby', stockKey, -1)
+-- 6.下单（保存用户）
+redis.call('sadd', orderKey, userId)
+-- 7.发送消息到队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 8.记录订单状态为排队中，field带有用户id，只有下单用户能查询
+redis.call('hset', statusKey, userId .. ':' .. orderId, 'QUEUED')
+redis.call('expire', statusKey, statusTtl)
+return 0
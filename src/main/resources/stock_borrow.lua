@@ -0,0 +1,18 @@
+---
+--- FileName: stock_borrow
+--- Description: 从相邻分片借出库存，传入目标分片时在同一个脚本中加到目标分片，保证不会超卖也不会丢失库存
+---
+
+-- KEYS[1] 被借用的分片库存key
+-- KEYS[2] 目标分片库存key，可选，不传时只扣减，由调用方记录借出的库存
+-- ARGV[1] 期望借用的数量
+local stock = tonumber(redis.call('get', KEYS[1])) or 0
+if (stock <= 0) then
+    return 0
+end
+local count = math.min(stock, tonumber(ARGV[1]))
+redis.call('incrby', KEYS[1], -count)
+if (KEYS[2]) then
+    redis.call('incrby', KEYS[2], count)
+end
+return count
@@ -0,0 +1,14 @@
+---
+--- FileName: stream_trim
+--- Description: 裁剪订单消息队列，删除所有消费者组都已确认的消息
+---
+
+-- 1.参数列表
+-- 1.1 订单消息队列key
+local streamKey = KEYS[1]
+-- 1.2 所有消费者组仍可能用到的最小id，比它小的消息都已确认
+local minId = ARGV[1]
+
+-- 2.XTRIM MINID 近似裁剪，需要redis 6.2+
+-- 通过脚本执行是因为 connection.execute 只能解析字符串类型的返回值，XTRIM 返回的是整数
+return redis.call('xtrim', streamKey, 'MINID', '~', minId)
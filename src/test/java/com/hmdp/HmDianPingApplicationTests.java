@@ -36,21 +36,23 @@ class HmDianPingApplicationTests {
     private final ExecutorService executorService = Executors.newFixedThreadPool(500);
 
     @Test
-    void testRedisIdWork() {
+    void testRedisIdWork() throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(300);
         Runnable task = () -> {
             for (int i = 0; i < 100; i++) {
                 long id = redisIdWork.nextId("order");
                 System.out.println("id = " + id);
-                latch.countDown();
             }
+            latch.countDown();
         };
         long begin = System.currentTimeMillis();
 
         for (int i = 0; i < 300; i++) {
             executorService.submit(task);
         }
+        latch.await();
         long end = System.currentTimeMillis();
+        System.out.println("time = " + (end - begin));
     }
 
 
@@ -0,0 +1,157 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存编码器的兼容性检查和性能对比，不依赖spring容器
+ * <p>
+ * 运行基准测试: mvn test -Dtest=CacheCodecTest -Dbenchmark=true [-Dbenchmark.iterations=200000]
+ */
+class CacheCodecTest {
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 200000);
+
+    private final List<CacheCodec> codecs = Arrays.asList(new JsonCacheCodec(), new BinaryCacheCodec());
+    private final CacheSerializer json = new CacheSerializer(codecs, "json");
+    private final CacheSerializer binary = new CacheSerializer(codecs, "binary");
+
+    @Test
+    void roundTrip() {
+        Shop shop = shop();
+        Blog blog = blog();
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20).withNano(0);
+        for (CacheSerializer writer : Arrays.asList(json, binary)) {
+            // 1.两种编码器写入的值，任意节点都能读取
+            for (CacheSerializer reader : Arrays.asList(json, binary)) {
+                assertEquals(shop, reader.deserialize(writer.serialize(shop), Shop.class));
+                assertEquals(blog, reader.deserialize(writer.serialize(blog), Blog.class));
+                RedisData redisData = reader.deserializeWithExpire(writer.serialize(shop, expireTime), Shop.class);
+                assertEquals(expireTime, redisData.getExpireTime());
+                assertEquals(shop, redisData.getData());
+            }
+        }
+        // 2.空字段不写入，读取后仍为空
+        Shop partial = new Shop().setId(2L).setName("部分字段");
+        assertEquals(partial, binary.deserialize(binary.serialize(partial), Shop.class));
+
+        // 3.升级前hutool直接写入的json可以继续读取
+        RedisData legacy = new RedisData();
+        legacy.setData(shop);
+        legacy.setExpireTime(expireTime);
+        byte[] legacyBytes = JSONUtil.toJsonStr(legacy).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop, binary.deserializeWithExpire(legacyBytes, Shop.class).getData());
+
+        // 4.不认识的编码器或更新的格式版本视为无法读取
+        byte[] bytes = binary.serialize(shop);
+        assertTrue(json.isReadable(bytes));
+        bytes[2] = (byte) (bytes[2] + 1);
+        assertFalse(json.isReadable(bytes));
+        bytes[1] = 100;
+        assertFalse(json.isReadable(bytes));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmark() {
+        Shop shop = shop();
+        Blog blog = blog();
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20);
+
+        String shopJson = JSONUtil.toJsonStr(shop);
+        String blogJson = JSONUtil.toJsonStr(blog);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(expireTime);
+        String logicalJson = JSONUtil.toJsonStr(redisData);
+        byte[] shopBytes = binary.serialize(shop);
+        byte[] blogBytes = binary.serialize(blog);
+        byte[] logicalBytes = binary.serialize(shop, expireTime);
+        byte[] logicalJsonBytes = json.serialize(shop, expireTime);
+
+        System.out.printf("%-36s %12s %8s%n", "case", "ns/op", "bytes");
+        // 1.改造前的hutool路径
+        run("hutool encode shop", () -> JSONUtil.toJsonStr(shop), shopJson.getBytes(StandardCharsets.UTF_8).length);
+        run("hutool decode shop", () -> JSONUtil.toBean(shopJson, Shop.class), 0);
+        run("hutool encode blog", () -> JSONUtil.toJsonStr(blog), blogJson.getBytes(StandardCharsets.UTF_8).length);
+        run("hutool decode blog", () -> JSONUtil.toBean(blogJson, Blog.class), 0);
+        run("hutool decode shop logical expire", () -> {
+            RedisData data = JSONUtil.toBean(logicalJson, RedisData.class);
+            return JSONUtil.toBean((JSONObject) data.getData(), Shop.class);
+        }, logicalJson.getBytes(StandardCharsets.UTF_8).length);
+        // 2.json编码器，逻辑过期只解析一次
+        run("json decode shop logical expire", () -> json.deserializeWithExpire(logicalJsonBytes, Shop.class), logicalJsonBytes.length);
+        // 3.二进制编码器
+        run("binary encode shop", () -> binary.serialize(shop), shopBytes.length);
+        run("binary decode shop", () -> binary.deserialize(shopBytes, Shop.class), 0);
+        run("binary encode blog", () -> binary.serialize(blog), blogBytes.length);
+        run("binary decode blog", () -> binary.deserialize(blogBytes, Blog.class), 0);
+        run("binary decode shop logical expire", () -> binary.deserializeWithExpire(logicalBytes, Shop.class), logicalBytes.length);
+    }
+
+    private static void run(String name, Supplier<Object> task, int bytes) {
+        Object sink = null;
+        // 预热
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = task.get();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = task.get();
+        }
+        long nanos = System.nanoTime() - begin;
+        assertNotNull(sink);
+        System.out.printf("%-36s %12.1f %8s%n", name, (double) nanos / ITERATIONS, bytes == 0 ? "" : String.valueOf(bytes));
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static Blog blog() {
+        return new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>男朋友给不了的浪漫要学会自己给<br/>"
+                        + "无法重来的一生<br/>尽量快乐.<br/><br/>营业时间：17:00-次日2:00<br/>人均：300元")
+                .setLiked(16)
+                .setComments(104)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1))
+                .setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+    }
+}
@@ -0,0 +1,278 @@
+package com.hmdp.loadtest;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀下单压测，启动内嵌redis和H2(MySQL模式)，不依赖外部环境
+ * <p>
+ * 运行: mvn test -Dtest=SeckillLoadTest -Dloadtest=true -Dloadtest.users=5000 -Dloadtest.stock=1000 -Dloadtest.concurrency=200
+ * <p>
+ * 每个用户请求一次 POST /voucher-order/seckill/{id}，报告吞吐量、p50/p99/p999延迟和订单队列消费完的耗时，
+ * 并检查超卖、少卖、一人多单以及redis和数据库库存是否一致
+ */
+@Slf4j
+@ActiveProfiles("loadtest")
+@DirtiesContext
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 5000);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 200);
+    // 等待订单全部落库的最长时间(毫秒)
+    private static final long DRAIN_TIMEOUT = Long.getLong("loadtest.drain-timeout", 60000L);
+
+    // 内嵌redis，所有测试结束后停止，避免重复运行时遗留redis-server进程和端口
+    private static RedisServer redisServer;
+
+    @Resource
+    private TestRestTemplate restTemplate;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        // 容器启动前拉起内嵌redis，端口随机避免和本机redis冲突
+        int port = NetUtil.getUsableLocalPort();
+        redisServer = RedisServer.newRedisServer()
+                .bind("127.0.0.1")
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    void seckill() throws InterruptedException {
+        // 1.准备优惠券和用户
+        Long voucherId = createVoucher();
+        List<String> tokens = createUsers();
+        log.info("压测开始, voucherId={}, users={}, stock={}, concurrency={}", voucherId, USERS, STOCK, CONCURRENCY);
+
+        // 2.每个用户并发请求一次秒杀
+        long[] latencies = new long[USERS];
+        Set<Long> orderIds = ConcurrentHashMap.newKeySet();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+        long begin = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+            int index = i;
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                Result result = seckill(voucherId, tokens.get(index));
+                latencies[index] = System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result.getSuccess())) {
+                    orderIds.add(((Number) result.getData()).longValue());
+                } else {
+                    failures.computeIfAbsent(StrUtil.nullToDefault(result.getErrorMsg(), "未知错误"), k -> new AtomicInteger()).incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.MINUTES), "压测请求超时");
+        long elapsed = System.nanoTime() - begin;
+
+        // 3.等待订单队列消费完，统计落库耗时
+        long drainBegin = System.nanoTime();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (countOrders(voucherId) < orderIds.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainBegin);
+
+        // 4.输出报告
+        Arrays.sort(latencies);
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        long redisStock = redisStock(voucherId);
+        long buyers = buyers(voucherId);
+        log.info("\n========== 秒杀压测报告 ==========" +
+                        "\n请求数: {}, 并发数: {}, 耗时: {} ms, 吞吐量: {} req/s" +
+                        "\n延迟(ms): p50={}, p99={}, p999={}, max={}" +
+                        "\n下单成功: {}, 失败: {}" +
+                        "\n订单落库: {}, 队列消费完耗时: {} ms" +
+                        "\n库存: 初始={}, 数据库={}, redis={}, redis已购用户={}",
+                USERS, CONCURRENCY, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                String.format("%.1f", USERS * 1e9 / elapsed),
+                millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.99)),
+                millis(percentile(latencies, 0.999)), millis(latencies[latencies.length - 1]),
+                orderIds.size(), failures, orders.size(), drainMillis,
+                STOCK, seckillVoucher.getStock(), redisStock, buyers);
+
+        // 5.检查结果
+        // 5.1.所有下单成功的订单都已落库，且没有多余的订单
+        assertEquals(orderIds.size(), orders.size(), "落库订单数与下单成功数不一致");
+        assertEquals(orderIds, orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()), "落库订单与下单成功的订单不一致");
+        // 5.2.没有超卖，数据库库存和订单数守恒
+        assertTrue(orders.size() <= STOCK, "超卖: 订单数 " + orders.size() + " 大于库存 " + STOCK);
+        assertTrue(seckillVoucher.getStock() >= 0, "超卖: 数据库库存为负数");
+        assertEquals(STOCK, seckillVoucher.getStock() + orders.size(), "数据库库存与订单数不守恒");
+        // 5.3.一人一单
+        long distinctUsers = orders.stream().map(VoucherOrder::getUserId).distinct().count();
+        assertEquals(orders.size(), distinctUsers, "存在一人多单");
+        // 5.4.redis库存和已购用户守恒
+        assertEquals(STOCK, redisStock + buyers, "redis库存与已购用户数不守恒");
+        // 5.5.用户数不少于库存时应当全部卖完，除库存不足外的失败都会造成少卖
+        if (USERS >= STOCK) {
+            assertEquals(STOCK, orders.size(), "少卖: 失败原因 " + failures);
+        }
+    }
+
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 直接写入登录token，跳过短信验证码登录
+     */
+    private List<String> createUsers() {
+        List<String> tokens = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            tokens.add("loadtest-" + i);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < USERS; i++) {
+                Map<String, String> user = new HashMap<>(2);
+                user.put("id", String.valueOf(i + 1));
+                user.put("nickName", "user_" + (i + 1));
+                String key = LOGIN_USER_KEY + tokens.get(i);
+                stringConnection.hMSet(key, user);
+                stringConnection.expire(key, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private Result seckill(Long voucherId, String token) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("authorization", token);
+        try {
+            Result result = restTemplate.exchange("/voucher-order/seckill/" + voucherId,
+                    HttpMethod.POST, new HttpEntity<>(headers), Result.class).getBody();
+            return result == null ? Result.fail("响应为空") : result;
+        } catch (Exception e) {
+            return Result.fail(e.getClass().getSimpleName());
+        }
+    }
+
+    private int countOrders(Long voucherId) {
+        return voucherOrderService.query().eq("voucher_id", voucherId).count();
+    }
+
+    /**
+     * 各分片redis库存之和
+     */
+    private long redisStock(Long voucherId) {
+        long stock = 0;
+        int shards = shards(voucherId);
+        for (int shard = 0; shard < shards; shard++) {
+            stock += Long.parseLong(StrUtil.nullToDefault(
+                    stringRedisTemplate.opsForValue().get(seckillKeys.stockKey(voucherId, shard, shards)), "0"));
+        }
+        return stock;
+    }
+
+    /**
+     * 各分片redis中记录的已购用户数之和
+     */
+    private long buyers(Long voucherId) {
+        long buyers = 0;
+        int shards = shards(voucherId);
+        for (int shard = 0; shard < shards; shard++) {
+            Long size = stringRedisTemplate.opsForSet().size(seckillKeys.orderKey(voucherId, shard, shards));
+            buyers += size == null ? 0 : size;
+        }
+        return buyers;
+    }
+
+    private int shards(Long voucherId) {
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_SHARDS_KEY + voucherId);
+        return shards == null ? 1 : Integer.parseInt(shards);
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
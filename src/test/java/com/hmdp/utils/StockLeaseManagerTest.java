@@ -0,0 +1,110 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 租约订单结算的幂等性，消费者在结算之后、ACK之前宕机时消息会重复投递，同一批订单会再结算一次
+ */
+@ActiveProfiles("loadtest")
+@DirtiesContext
+@SpringBootTest
+class StockLeaseManagerTest {
+
+    private static final String NODE = "node-a";
+
+    private static RedisServer redisServer;
+
+    @Resource
+    private StockLeaseManager stockLeaseManager;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int port = NetUtil.getUsableLocalPort();
+        redisServer = RedisServer.newRedisServer()
+                .bind("127.0.0.1")
+                .port(port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    void settleSameBatchTwice() {
+        Long voucherId = 9001L;
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0, 1), "10");
+        stringRedisTemplate.opsForHash().put(leaseKey(voucherId), NODE, "2");
+        List<VoucherOrder> persisted = Collections.singletonList(order(1L, 101L, voucherId));
+        List<VoucherOrder> rejected = Collections.singletonList(order(2L, 102L, voucherId));
+
+        stockLeaseManager.settle(NODE, persisted, rejected);
+        stockLeaseManager.settle(NODE, persisted, rejected);
+
+        // 租约只扣减一次，重复下单的库存只归还一次
+        assertEquals("0", stringRedisTemplate.opsForHash().get(leaseKey(voucherId), NODE));
+        assertEquals("11", stringRedisTemplate.opsForValue().get(seckillKeys.stockKey(voucherId, 0, 1)));
+        assertEquals(Collections.singleton("101"),
+                stringRedisTemplate.opsForSet().members(seckillKeys.orderKey(voucherId, 0, 1)));
+    }
+
+    @Test
+    void settleSameBatchTwiceWithShards() {
+        Long voucherId = 9002L;
+        int shards = 4;
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_SHARDS_KEY + voucherId, String.valueOf(shards));
+        stringRedisTemplate.opsForHash().put(leaseKey(voucherId), NODE, "3");
+        List<VoucherOrder> persisted = Collections.singletonList(order(3L, 201L, voucherId));
+        List<VoucherOrder> rejected = Arrays.asList(order(4L, 202L, voucherId), order(5L, 203L, voucherId));
+
+        stockLeaseManager.settle(NODE, persisted, rejected);
+        stockLeaseManager.settle(NODE, persisted, rejected);
+
+        assertEquals("0", stringRedisTemplate.opsForHash().get(leaseKey(voucherId), NODE));
+        long stock = 0;
+        long buyers = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            String value = stringRedisTemplate.opsForValue().get(seckillKeys.stockKey(voucherId, shard, shards));
+            stock += value == null ? 0 : Long.parseLong(value);
+            buyers += stringRedisTemplate.opsForSet().size(seckillKeys.orderKey(voucherId, shard, shards));
+        }
+        assertEquals(2, stock);
+        assertEquals(1, buyers);
+    }
+
+    private static VoucherOrder order(Long id, Long userId, Long voucherId) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(voucherId);
+    }
+}
@@ -0,0 +1,39 @@
+-- 压测使用的H2表结构(MySQL模式)，只包含秒杀下单涉及的表，与线上表结构及 db/tb_voucher_order.sql 保持一致
+CREATE TABLE IF NOT EXISTS `tb_voucher` (
+    `id`           BIGINT AUTO_INCREMENT PRIMARY KEY,
+    `shop_id`      BIGINT,
+    `title`        VARCHAR(255) NOT NULL,
+    `sub_title`    VARCHAR(255),
+    `rules`        VARCHAR(1024),
+    `pay_value`    BIGINT NOT NULL,
+    `actual_value` BIGINT NOT NULL,
+    `type`         TINYINT NOT NULL DEFAULT 0,
+    `status`       TINYINT NOT NULL DEFAULT 1,
+    `create_time`  TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    `update_time`  TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS `tb_seckill_voucher` (
+    `voucher_id`  BIGINT PRIMARY KEY,
+    `stock`       INT NOT NULL,
+    `create_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    `begin_time`  TIMESTAMP NOT NULL,
+    `end_time`    TIMESTAMP NOT NULL,
+    `update_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS `tb_voucher_order` (
+    `id`          BIGINT PRIMARY KEY,
+    `user_id`     BIGINT NOT NULL,
+    `voucher_id`  BIGINT NOT NULL,
+    `pay_type`    TINYINT NOT NULL DEFAULT 1,
+    `status`      TINYINT NOT NULL DEFAULT 1,
+    `create_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    `pay_time`    TIMESTAMP,
+    `use_time`    TIMESTAMP,
+    `refund_time` TIMESTAMP,
+    `update_time` TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    `active`      TINYINT AS (CASE WHEN `status` = 4 THEN NULL ELSE 1 END)
+);
+CREATE UNIQUE INDEX IF NOT EXISTS `uk_user_voucher_active` ON `tb_voucher_order` (`user_id`, `voucher_id`, `active`);
+CREATE INDEX IF NOT EXISTS `idx_voucher_status` ON `tb_voucher_order` (`voucher_id`, `status`);